@@ -0,0 +1,122 @@
+package com.wizphil.instantmessenger.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// The most recent messages of one conversation (or group), oldest first, in a fixed size ring
+// The ring always holds a contiguous run of the newest messages, so any page that ends inside it can be served without the database
+// complete means the ring holds the whole conversation, so a short page from the ring is also the real answer
+class ConversationRing<T> {
+    private final Object[] items;
+    private final ToLongFunction<T> keyOf;
+    private final Function<T, String> idOf;
+    private final ToLongFunction<T> weightOf;
+    private int head;
+    private int size;
+    private long weight;
+    private boolean complete;
+
+    // keyOf is the message's sortId, unique and increasing within a conversation
+    ConversationRing(int capacity, ToLongFunction<T> keyOf, Function<T, String> idOf, ToLongFunction<T> weightOf) {
+        this.items = new Object[capacity];
+        this.keyOf = keyOf;
+        this.idOf = idOf;
+        this.weightOf = weightOf;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(int index) {
+        return (T) items[(head + index) % items.length];
+    }
+
+    synchronized void add(T item) {
+        if (size > 0 && keyOf.applyAsLong(item) <= keyOf.applyAsLong(get(size - 1))) {
+            // out of order, two messages of the same conversation were created at once and the newer one got here first
+            merge(List.of(item), complete);
+            return;
+        }
+
+        if (size == items.length) {
+            weight -= weightOf.applyAsLong(get(0));
+            head = (head + 1) % items.length;
+            size--;
+            complete = false;
+        }
+
+        items[(head + size) % items.length] = item;
+        size++;
+        weight += weightOf.applyAsLong(item);
+    }
+
+    // adds a page read from the database, the page must be the newest messages of the conversation
+    // wholeConversation means the page is every message the conversation has
+    synchronized void merge(List<T> page, boolean wholeConversation) {
+        Map<String, T> byId = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            byId.put(idOf.apply(get(i)), get(i));
+        }
+
+        for (T item : page) {
+            byId.putIfAbsent(idOf.apply(item), item);
+        }
+
+        List<T> merged = new ArrayList<>(byId.values());
+        merged.sort(Comparator.comparingLong(keyOf));
+
+        int from = Math.max(0, merged.size() - items.length);
+        complete = wholeConversation && from == 0;
+
+        head = 0;
+        size = 0;
+        weight = 0;
+        for (T item : merged.subList(from, merged.size())) {
+            items[size++] = item;
+            weight += weightOf.applyAsLong(item);
+        }
+    }
+
+    // up to limit messages before beforeKey, newest first, or null if the ring can't answer for sure
+    synchronized List<T> before(long beforeKey, int limit) {
+        List<T> page = new ArrayList<>(Math.min(limit, size));
+        for (int i = size - 1; i >= 0 && page.size() < limit; i--) {
+            T item = get(i);
+            if (keyOf.applyAsLong(item) < beforeKey) {
+                page.add(item);
+            }
+        }
+
+        if (page.size() < limit && !complete) {
+            return null;
+        }
+
+        return page;
+    }
+
+    // up to limit messages after afterKey, oldest first, or null if the ring can't answer for sure
+    // the ring holds everything newer than its oldest message, so it can answer whenever afterKey isn't older than that
+    synchronized List<T> after(long afterKey, int limit) {
+        if (!complete && (size == 0 || afterKey < keyOf.applyAsLong(get(0)))) {
+            return null;
+        }
+
+        List<T> page = new ArrayList<>(Math.min(limit, size));
+        for (int i = 0; i < size && page.size() < limit; i++) {
+            T item = get(i);
+            if (keyOf.applyAsLong(item) > afterKey) {
+                page.add(item);
+            }
+        }
+
+        return page;
+    }
+
+    // approximate bytes held, used as this ring's weight for eviction
+    synchronized int weight() {
+        return (int) Math.min(Integer.MAX_VALUE, weight + 16L * items.length);
+    }
+}
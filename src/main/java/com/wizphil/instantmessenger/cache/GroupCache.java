@@ -16,7 +16,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 @Slf4j
@@ -24,7 +28,12 @@ public class GroupCache {
     @Autowired
     private GroupRepository groupRepository;
 
+    @Autowired
+    private GroupReadCursors groupReadCursors;
+
     private final SetMultimap<String, String> userIdToGroupIds = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    // the members each group was last indexed with, the cached group's userIds are changed in place before update is called
+    private final Map<String, Set<String>> indexedMembers = new ConcurrentHashMap<>();
     private final LoadingCache<String, Group> groupCache = CacheBuilder.newBuilder().build(new CacheLoader<>() {
         @Override
         public Group load(String id) {
@@ -40,8 +49,58 @@ public class GroupCache {
         }
     }
 
+    public List<Group> loadAll() {
+        List<Group> allGroups = groupRepository.findAll();
+        for (Group group : allGroups) {
+            groupCache.put(group.getId(), group);
+            index(group);
+        }
+
+        return allGroups;
+    }
+
+    // loadAll in pieces, for the startup warm-up (see WarmUpService)
+    public void warm(List<Group> groups) {
+        for (Group group : groups) {
+            groupCache.put(group.getId(), group);
+            index(group);
+        }
+    }
+
     public Set<Group> getGroupsForUser(String userId) {
-        return null;
+        Set<Group> groups = new HashSet<>();
+        for (String groupId : getGroupIdsForUser(userId)) {
+            Group group = get(groupId);
+            if (group != null) {
+                groups.add(group);
+            }
+        }
+
+        return groups;
+    }
+
+    public Set<String> getGroupIdsForUser(String userId) {
+        synchronized (userIdToGroupIds) {
+            return new HashSet<>(userIdToGroupIds.get(userId));
+        }
+    }
+
+    private synchronized void index(Group group) {
+        Set<String> members = group.getUserIds() == null ? Set.of() : Set.copyOf(group.getUserIds());
+        Set<String> previousMembers = indexedMembers.getOrDefault(group.getId(), Set.of());
+
+        for (String userId : previousMembers) {
+            if (!members.contains(userId)) {
+                userIdToGroupIds.remove(userId, group.getId());
+            }
+        }
+
+        for (String userId : members) {
+            userIdToGroupIds.put(userId, group.getId());
+        }
+
+        indexedMembers.put(group.getId(), members);
+        groupReadCursors.setMembers(group.getId(), members);
     }
 
     public void update(Group group) {
@@ -66,6 +125,7 @@ public class GroupCache {
         }
 
         groupCache.put(group.getId(), group);
+        index(group);
         log.info("updateGroup finished; new group {} old group {}", group, oldGroup);
     }
 
@@ -76,5 +136,6 @@ public class GroupCache {
 
         group = groupRepository.insert(group);
         groupCache.put(group.getId(), group);
+        index(group);
     }
 }
@@ -0,0 +1,287 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.persistence.GroupSequence;
+import com.wizphil.instantmessenger.repository.GroupMessageRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Group unread tracking
+// Every group message gets the next sequence number of its group, each member has a read cursor (the last seq they've seen)
+// so a member's unread count is just groupSeq - cursor, no queries
+// groupSeq here is the committed watermark, seqs handed out to messages that are still being written don't count yet
+// Cursors are stored per group as a long[] indexed by member ordinal, so a group costs 8 bytes per member instead of an object per member
+@Component
+@DependsOn("messageJournal")
+@Slf4j
+public class GroupReadCursors {
+    @Autowired
+    private GroupMessageRepository groupMessageRepository;
+
+    private final ConcurrentHashMap<String, GroupCursors> cursorsByGroupId = new ConcurrentHashMap<>();
+    private final LongAdder changes = new LongAdder();
+
+    // one aggregation over all group messages, so the sequences continue where they left off
+    // journaled messages that weren't shipped before a crash are in mongo by now, the journal ships them on startup
+    @PostConstruct
+    public void init() {
+        int groups = 0;
+        for (GroupSequence groupSequence : groupMessageRepository.findLatestSequences()) {
+            if (groupSequence.getGroupId() != null && groupSequence.getSeq() != null) {
+                getOrCreate(groupSequence.getGroupId()).startAt(groupSequence.getSeq());
+                groups++;
+            }
+        }
+
+        log.info("groupReadCursors loaded sequences for {} groups", groups);
+    }
+
+    private GroupCursors getOrCreate(String groupId) {
+        return cursorsByGroupId.computeIfAbsent(groupId, id -> new GroupCursors());
+    }
+
+    // persists a group message under the group's next seq, members only count it once write returns
+    // the seq and the sortId are taken together under the group's monitor so both orders agree, the write itself runs without it
+    // so concurrent sends to a group share batches and fsyncs (see WriteBehindQueue, MessageJournal)
+    // a failed write leaves a gap instead of giving its seq to the next message, it may have reached the database after all (a timeout)
+    // and two messages must never share a seq
+    public <T> T append(String groupId, LongSupplier sortIds, SeqWrite<T> write) {
+        GroupCursors cursors = getOrCreate(groupId);
+        long[] reserved = cursors.reserve(sortIds);
+        changes.increment();
+        boolean written = false;
+        try {
+            T result = write.apply(reserved[0], reserved[1]);
+            written = true;
+            return result;
+        } finally {
+            cursors.finish(reserved[0], written);
+        }
+    }
+
+    public interface SeqWrite<T> {
+        T apply(long seq, long sortId);
+    }
+
+    // a message that's already persisted
+    long nextSeq(String groupId) {
+        changes.increment();
+        return getOrCreate(groupId).nextSeq();
+    }
+
+    // the committed watermark: every message up to it is persisted (or failed), later ones may still be in flight
+    public long getSeq(String groupId) {
+        GroupCursors cursors = cursorsByGroupId.get(groupId);
+        return cursors == null ? 0 : cursors.getSeq();
+    }
+
+    // new members start with everything read, removed members give their slot to the next new member
+    public void setMembers(String groupId, Collection<String> userIds) {
+        changes.increment();
+        getOrCreate(groupId).setMembers(userIds);
+    }
+
+    // returns false if the user isn't a member of the group
+    public boolean advance(String groupId, String userId, long seq) {
+        changes.increment();
+        GroupCursors cursors = cursorsByGroupId.get(groupId);
+        return cursors != null && cursors.advance(userId, seq);
+    }
+
+    public long getUnread(String groupId, String userId) {
+        GroupCursors cursors = cursorsByGroupId.get(groupId);
+        return cursors == null ? 0 : cursors.getUnread(userId);
+    }
+
+    // replays a group message written after the last snapshot, safe to repeat
+    void replay(String groupId, String fromId, long seq) {
+        changes.increment();
+        GroupCursors cursors = getOrCreate(groupId);
+        cursors.startAt(seq);
+        cursors.replayAdvance(fromId, seq);
+    }
+
+    long getChangeCount() {
+        return changes.sum();
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        Map<String, GroupCursors> groups = new HashMap<>(cursorsByGroupId);
+        out.writeInt(groups.size());
+        for (Map.Entry<String, GroupCursors> group : groups.entrySet()) {
+            out.writeUTF(group.getKey());
+            group.getValue().writeTo(out);
+        }
+    }
+
+    // runs on startup before groups are loaded and before requests are served (see UnreadSnapshotter)
+    // cursors of groups whose members aren't known yet are held until they are, cursors of users that have left since are dropped then
+    void readFrom(DataInput in) throws IOException {
+        int groups = in.readInt();
+        for (int i = 0; i < groups; i++) {
+            getOrCreate(in.readUTF()).readFrom(in);
+        }
+    }
+
+    private static final class GroupCursors {
+        private final Map<String, Integer> ordinals = new HashMap<>();
+        private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+        private long[] cursors = new long[4];
+        // the last seq handed out
+        private long seq;
+        // every seq up to here is done, this is what unread counts use
+        private long committed;
+        // handed out and still being written
+        private final TreeSet<Long> inFlight = new TreeSet<>();
+        // seqs whose write failed, not counted as unread, dropped once every cursor is past them
+        private final TreeSet<Long> lost = new TreeSet<>();
+        // userId -> cursor restored from the snapshot before the group's members were known, consumed by the first setMembers
+        private Map<String, Long> restoredCursors;
+
+        synchronized void startAt(long seq) {
+            this.seq = Math.max(this.seq, seq);
+            this.committed = Math.max(this.committed, seq);
+        }
+
+        synchronized long nextSeq() {
+            startAt(seq + 1);
+            return seq;
+        }
+
+        // {seq, sortId}
+        synchronized long[] reserve(LongSupplier sortIds) {
+            inFlight.add(++seq);
+            return new long[]{seq, sortIds.getAsLong()};
+        }
+
+        synchronized void finish(long finished, boolean written) {
+            inFlight.remove(finished);
+            if (!written) {
+                lost.add(finished);
+            }
+
+            committed = inFlight.isEmpty() ? seq : inFlight.first() - 1;
+        }
+
+        synchronized long getSeq() {
+            return committed;
+        }
+
+        synchronized void setMembers(Collection<String> userIds) {
+            Set<String> members = new HashSet<>(userIds);
+            ordinals.entrySet().removeIf(entry -> {
+                if (members.contains(entry.getKey())) {
+                    return false;
+                }
+
+                freeOrdinals.push(entry.getValue());
+                return true;
+            });
+
+            for (String userId : members) {
+                if (ordinals.containsKey(userId)) {
+                    continue;
+                }
+
+                int ordinal = freeOrdinals.isEmpty() ? ordinals.size() : freeOrdinals.pop();
+                if (ordinal >= cursors.length) {
+                    cursors = Arrays.copyOf(cursors, Math.max(ordinal + 1, cursors.length * 2));
+                }
+
+                Long restored = restoredCursors == null ? null : restoredCursors.get(userId);
+                cursors[ordinal] = restored == null ? seq : Math.min(restored, seq);
+                ordinals.put(userId, ordinal);
+            }
+
+            // the first members set is the whole group, anyone left over isn't a member anymore
+            restoredCursors = null;
+        }
+
+        synchronized boolean advance(String userId, long readSeq) {
+            Integer ordinal = ordinals.get(userId);
+            if (ordinal == null) {
+                return false;
+            }
+
+            // cursors only move forward and never past the last message, a sender's cursor can be ahead of the watermark
+            cursors[ordinal] = Math.max(cursors[ordinal], Math.min(readSeq, seq));
+            pruneLost();
+            return true;
+        }
+
+        private void pruneLost() {
+            if (lost.isEmpty()) {
+                return;
+            }
+
+            long oldestCursor = committed;
+            for (int ordinal : ordinals.values()) {
+                oldestCursor = Math.min(oldestCursor, cursors[ordinal]);
+            }
+
+            lost.headSet(oldestCursor, true).clear();
+        }
+
+        synchronized void replayAdvance(String userId, long readSeq) {
+            if (!advance(userId, readSeq) && restoredCursors != null) {
+                restoredCursors.merge(userId, readSeq, Math::max);
+            }
+        }
+
+        synchronized long getUnread(String userId) {
+            Integer ordinal = ordinals.get(userId);
+            if (ordinal == null || cursors[ordinal] >= committed) {
+                return 0;
+            }
+
+            return committed - cursors[ordinal] - lost.subSet(cursors[ordinal], false, committed, true).size();
+        }
+
+        // lost seqs aren't written, after a restart they count as unread until they're read past
+        synchronized void writeTo(DataOutput out) throws IOException {
+            out.writeLong(committed);
+            out.writeInt(ordinals.size());
+            for (Map.Entry<String, Integer> member : ordinals.entrySet()) {
+                out.writeUTF(member.getKey());
+                out.writeLong(cursors[member.getValue()]);
+            }
+        }
+
+        synchronized void readFrom(DataInput in) throws IOException {
+            startAt(in.readLong());
+            int members = in.readInt();
+            for (int i = 0; i < members; i++) {
+                String userId = in.readUTF();
+                long cursor = in.readLong();
+                Integer ordinal = ordinals.get(userId);
+                if (ordinal != null) {
+                    cursors[ordinal] = cursor;
+                } else if (ordinals.isEmpty()) {
+                    if (restoredCursors == null) {
+                        restoredCursors = new HashMap<>();
+                    }
+
+                    restoredCursors.put(userId, cursor);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.wizphil.instantmessenger.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// One fixed size, memory mapped file of the message journal
+// Records are [int length][int crc32][byte type][payload], a length of 0 (the file is zero filled) marks the end of the segment
+// A record with a bad crc is a torn write from a crash, it and everything after it in the segment is ignored
+@Slf4j
+class JournalSegment {
+    static final int HEADER_SIZE = 8;
+
+    private final long id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private JournalSegment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static Path path(Path directory, long id) {
+        return directory.resolve(String.format("segment-%020d.log", id));
+    }
+
+    // segment-00000000000000000042.log -> 42, anything else -> -1
+    static long id(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith("segment-") || !name.endsWith(".log")) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static JournalSegment create(Path directory, long id, int size) throws IOException {
+        Path path = path(directory, id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new JournalSegment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    static JournalSegment open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new JournalSegment(id(path), path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    // returns the offset just past the record, or -1 if the segment doesn't have room for it
+    // callers make sure only one thread appends at a time
+    int append(byte type, byte[] payload) {
+        int length = payload.length + 1;
+        int position = buffer.position();
+        // always leave room for the 0 length that marks the end
+        if (position + HEADER_SIZE + length + 4 > buffer.capacity()) {
+            return -1;
+        }
+
+        buffer.putInt(position + 4, crc(type, payload));
+        buffer.put(position + HEADER_SIZE, type);
+        buffer.position(position + HEADER_SIZE + 1);
+        buffer.put(payload);
+        // the length goes in last, so a reader never sees a length without its record
+        buffer.putInt(position, length);
+        return buffer.position();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close journal segment {}", path, e);
+        }
+    }
+
+    interface RecordConsumer {
+        void accept(byte type, byte[] payload, int endOffset);
+    }
+
+    // reads every intact record starting at fromOffset
+    void read(int fromOffset, RecordConsumer consumer) {
+        int position = fromOffset;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                return;
+            }
+
+            int crc = buffer.getInt(position + 4);
+            byte type = buffer.get(position + HEADER_SIZE);
+            byte[] payload = new byte[length - 1];
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + HEADER_SIZE + 1);
+            record.get(payload);
+            if (crc(type, payload) != crc) {
+                log.warn("Journal segment {} has a torn record at offset {}, ignoring the rest of the segment", path, position);
+                return;
+            }
+
+            position += HEADER_SIZE + length;
+            consumer.accept(type, payload, position);
+        }
+    }
+
+    private static int crc(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -1,29 +1,44 @@
 package com.wizphil.instantmessenger.cache;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wizphil.instantmessenger.dto.UnreadCountDTO;
+import com.wizphil.instantmessenger.exceptions.RepositoryException;
 import com.wizphil.instantmessenger.persistence.GroupMessage;
 import com.wizphil.instantmessenger.persistence.Message;
 import com.wizphil.instantmessenger.repository.GroupMessageRepository;
 import com.wizphil.instantmessenger.repository.MessageRepository;
-import com.wizphil.instantmessenger.service.MessageService;
+import com.wizphil.instantmessenger.service.MessageIdGenerator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
-// this isn't actually caching any messages, we just use it as an intermediate layer for talking to the database
-// it would be nice to find a smart way to cache messages, so we don't have to read from the db on every login
+// an intermediate layer for talking to the database
+// the newest messages of recently used conversations and groups are kept in memory (see ConversationRing), so opening a conversation
+// usually doesn't need the database
 @Component
 @Slf4j
 public class MessageCache {
@@ -33,99 +48,407 @@ public class MessageCache {
     @Autowired
     private GroupMessageRepository groupMessageRepository;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private MessageJournal messageJournal;
+
+    // sync inserts every message on the request thread, batched buffers them and writes them with one insertMany per batch (see WriteBehindQueue)
+    // journal acknowledges once the message is in the local journal on disk, and ships it to the database in the background (see MessageJournal)
+    // lookups by id check the journal for messages that aren't shipped yet, history is served from the rings, which get every message
+    // as it's created, but a history query that misses the rings can leave out messages that aren't shipped yet
+    @Value("${message.persistence.mode:sync}")
+    private String persistenceMode;
+
+    // batched only: after-flush makes the sender wait until their message's batch is written (concurrent senders share one round trip)
+    // before-flush returns as soon as the message is buffered, which is faster but a crash loses whatever hasn't been written yet,
+    // and a message can be delivered before a history request would return it
+    @Value("${message.persistence.ack:after-flush}")
+    private String persistenceAck;
+
+    @Value("${message.persistence.batch-size:256}")
+    private int persistenceBatchSize;
+
+    @Value("${message.persistence.max-delay-ms:0}")
+    private long persistenceMaxDelayMs;
+
+    // batches written concurrently per collection
+    @Value("${message.persistence.writers:2}")
+    private int persistenceWriters;
+
+    @Value("${message.persistence.max-backlog:100000}")
+    private int persistenceMaxBacklog;
+
+    // how long a sender waits for their message to be journaled or flushed before the send fails
+    @Value("${message.persistence.await-timeout-ms:10000}")
+    private long persistenceAwaitTimeoutMs;
+
+    // how many of the newest messages we keep per conversation/group, at least one page (plus the one that tells us there's more)
+    @Value("${message.cache.ring-size:300}")
+    private int ringSize;
+
+    // clients pick their page size, this caps it
+    // 250 by default to keep a page under 500kb (messages have a 2kb character limit)
+    @Value("${message.history.max-page-size:250}")
+    private int maxPageSize;
+
+    // memory budget for all rings together, the least valuable conversations are evicted first (caffeine's W-TinyLFU)
+    @Value("${message.cache.max-weight-bytes:67108864}")
+    private long maxWeightBytes;
+
+    private Cache<String, ConversationRing<Message>> conversationRings;
+    private Cache<String, ConversationRing<GroupMessage>> groupRings;
+
+    // null in sync mode
+    private WriteBehindQueue<Message> messageWriteBehind;
+    private WriteBehindQueue<GroupMessage> groupMessageWriteBehind;
+    private boolean ackAfterFlush;
+    private boolean journaled;
+
     // This only keeps track of unread private messages
-    // Unread group messages are currently not tracked
-    private final SetMultimap<String, String> userUnreadMessages = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    // Unread group messages are tracked by GroupReadCursors
+    private final UnreadCounters unreadCounters = new UnreadCounters();
+
+    @PostConstruct
+    public void init() {
+        ringSize = Math.max(ringSize, maxPageSize + 1);
+        conversationRings = Caffeine.newBuilder()
+                .maximumWeight(maxWeightBytes / 2)
+                .weigher((String id, ConversationRing<Message> ring) -> ring.weight())
+                .recordStats()
+                .build();
+        groupRings = Caffeine.newBuilder()
+                .maximumWeight(maxWeightBytes / 2)
+                .weigher((String id, ConversationRing<GroupMessage> ring) -> ring.weight())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, conversationRings, "message.conversation");
+        CaffeineCacheMetrics.monitor(meterRegistry, groupRings, "message.group");
 
-    private final LoadingCache<String, Long> userUnreadMessageTimes = CacheBuilder.newBuilder().build(new CacheLoader<>() {
-        @Override
-        public Long load(String conversationId) {
-            return null;
+        journaled = "journal".equals(persistenceMode);
+        if (!"batched".equals(persistenceMode)) {
+            log.info("Message persistence mode {}", persistenceMode);
+            return;
         }
-    });
 
-    // TODO PAGE_SIZE should be a dynamic server config
-    // using 250 because to prevent the request from ever being more than 500kb (messages have a 2kb character limit)
-    private static final int MAX_RESULT_LIMIT = 250;
+        ackAfterFlush = !"before-flush".equals(persistenceAck);
+        log.info("Message persistence mode batched, ack {}, batch size {}, max delay {}ms", persistenceAck, persistenceBatchSize, persistenceMaxDelayMs);
+        // messages get their ids before they're queued, so a retry can save (upsert) the batch without duplicating what was already written
+        messageWriteBehind = new WriteBehindQueue<>("message", messageRepository::insert, messageRepository::saveAll, persistenceWriters, persistenceBatchSize,
+                persistenceMaxDelayMs, persistenceMaxBacklog, meterRegistry);
+        groupMessageWriteBehind = new WriteBehindQueue<>("groupMessage", groupMessageRepository::insert, groupMessageRepository::saveAll, persistenceWriters,
+                persistenceBatchSize, persistenceMaxDelayMs, persistenceMaxBacklog, meterRegistry);
+    }
 
+    @PreDestroy
+    public void destroy() {
+        if (messageWriteBehind != null) {
+            messageWriteBehind.shutdown();
+            groupMessageWriteBehind.shutdown();
+        }
+    }
+
+    // journal mode acknowledges (and delivers) a message before mongo has it, so ids are looked up in the journal first
     public Message getMessage(String id) {
-        return messageRepository.findById(id).orElse(null);
+        Message unshipped = journaled ? messageJournal.getUnshippedMessage(id) : null;
+        return unshipped != null ? unshipped : messageRepository.findById(id).orElse(null);
     }
 
     public GroupMessage getGroupMessage(String id) {
-        return groupMessageRepository.findById(id).orElse(null);
+        GroupMessage unshipped = journaled ? messageJournal.getUnshippedGroupMessage(id) : null;
+        return unshipped != null ? unshipped : groupMessageRepository.findById(id).orElse(null);
+    }
+
+    // one $in query, results come back in the order the ids were asked for, unknown ids are left out
+    public List<Message> getMessages(List<String> ids) {
+        return inRequestedOrder(ids, findAllById(ids, messageJournal::getUnshippedMessage, messageRepository::findAllById), Message::getId);
+    }
+
+    public List<GroupMessage> getGroupMessages(List<String> ids) {
+        return inRequestedOrder(ids, findAllById(ids, messageJournal::getUnshippedGroupMessage, groupMessageRepository::findAllById), GroupMessage::getId);
     }
 
+    private <T> Iterable<T> findAllById(List<String> ids, Function<String, T> unshipped, Function<List<String>, Iterable<T>> find) {
+        if (!journaled) {
+            return find.apply(ids);
+        }
+
+        List<T> found = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            T item = unshipped.apply(id);
+            if (item != null) {
+                found.add(item);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            find.apply(missing).forEach(found::add);
+        }
+
+        return found;
+    }
+
+    private static <T> List<T> inRequestedOrder(List<String> ids, Iterable<T> found, Function<T, String> idOf) {
+        Map<String, T> byId = new HashMap<>();
+        found.forEach(item -> byId.put(idOf.apply(item), item));
+
+        List<T> ordered = new ArrayList<>(byId.size());
+        for (String id : ids) {
+            T item = byId.remove(id);
+            if (item != null) {
+                ordered.add(item);
+            }
+        }
+
+        return ordered;
+    }
+
+    // the page based history, kept for clients that haven't moved to the slices below
     public Page<Message> getConversationBeforeTime(String conversationId, long beforeTime) {
-        // PageRequest is our way of calling 'limit' on the MongoDB query
-        // feels weird, but we're always going to get page 0
-        // we use beforeTime as our cursor, since the timestamp for a conversationId is always unique
-        Pageable pageRequest = PageRequest.of(0, MAX_RESULT_LIMIT);
-        return messageRepository.findConversationBeforeTime(conversationId, beforeTime, pageRequest);
+        return getConversationBeforeId(conversationId, MessageIdGenerator.firstIdAt(beforeTime));
     }
 
     public Page<GroupMessage> getGroupConversationBeforeTime(String groupId, long beforeTime) {
+        return getGroupConversationBeforeId(groupId, MessageIdGenerator.firstIdAt(beforeTime));
+    }
+
+    // the total is just what's on the page, it never was more than that when the page came from a ring
+    public Page<Message> getConversationBeforeId(String conversationId, long beforeId) {
+        Slice<Message> slice = getConversationBefore(conversationId, beforeId, maxPageSize);
+        return new PageImpl<>(slice.getContent(), slice.getPageable(), slice.getNumberOfElements());
+    }
+
+    public Page<GroupMessage> getGroupConversationBeforeId(String groupId, long beforeId) {
+        Slice<GroupMessage> slice = getGroupConversationBefore(groupId, beforeId, maxPageSize);
+        return new PageImpl<>(slice.getContent(), slice.getPageable(), slice.getNumberOfElements());
+    }
+
+    // newest first, beforeId is our cursor (see MessageIdGenerator), Long.MAX_VALUE gets the newest page
+    // limit is capped at message.history.max-page-size
+    public Slice<Message> getConversationBefore(String conversationId, long beforeId, int limit) {
+        return before(conversationRings, conversationId, beforeId, limit, messageRepository::findConversationBeforeId, this::newConversationRing);
+    }
+
+    public Slice<GroupMessage> getGroupConversationBefore(String groupId, long beforeId, int limit) {
+        return before(groupRings, groupId, beforeId, limit, groupMessageRepository::findConversationBeforeId, this::newGroupRing);
+    }
+
+    // oldest first, -1 gets the start of the conversation
+    public Slice<Message> getConversationAfter(String conversationId, long afterId, int limit) {
+        return after(conversationRings, conversationId, afterId, limit, messageRepository::findConversationAfterId);
+    }
+
+    public Slice<GroupMessage> getGroupConversationAfter(String groupId, long afterId, int limit) {
+        return after(groupRings, groupId, afterId, limit, groupMessageRepository::findConversationAfterId);
+    }
+
+    private <T> Slice<T> before(Cache<String, ConversationRing<T>> rings, String id, long beforeId, int limit, SliceQuery<T> query,
+                                Supplier<ConversationRing<T>> newRing) {
         // PageRequest is our way of calling 'limit' on the MongoDB query
         // feels weird, but we're always going to get page 0
-        // we use beforeTime as our cursor, since the timestamp for a conversationId is always unique
-        Pageable pageRequest = PageRequest.of(0, MAX_RESULT_LIMIT);
-        return groupMessageRepository.findConversationBeforeTime(groupId, beforeTime, pageRequest);
+        Pageable pageRequest = PageRequest.of(0, pageSize(limit));
+
+        // counted as a hit or miss in the cache stats
+        ConversationRing<T> ring = rings.getIfPresent(id);
+        // one more than the page, so we know if there's more
+        List<T> cached = ring == null ? null : ring.before(beforeId, pageRequest.getPageSize() + 1);
+        if (cached != null) {
+            return toSlice(cached, pageRequest);
+        }
+
+        boolean newestPage = isNewestPage(beforeId);
+        Slice<T> slice = query.find(id, beforeId, pageRequest);
+        // only the newest page can seed the ring, older pages would leave a gap between them and the newest messages
+        if (newestPage) {
+            rings.asMap().compute(id, (key, existing) -> {
+                ConversationRing<T> merged = existing == null ? newRing.get() : existing;
+                merged.merge(slice.getContent(), !slice.hasNext());
+                return merged;
+            });
+        }
+
+        return slice;
+    }
+
+    // catching up on newer messages never seeds a ring, the page could be anywhere in the conversation
+    private <T> Slice<T> after(Cache<String, ConversationRing<T>> rings, String id, long afterId, int limit, SliceQuery<T> query) {
+        Pageable pageRequest = PageRequest.of(0, pageSize(limit));
+
+        ConversationRing<T> ring = rings.getIfPresent(id);
+        List<T> cached = ring == null ? null : ring.after(afterId, pageRequest.getPageSize() + 1);
+        if (cached != null) {
+            return toSlice(cached, pageRequest);
+        }
+
+        return query.find(id, afterId, pageRequest);
+    }
+
+    private int pageSize(int limit) {
+        return Math.max(1, Math.min(limit, maxPageSize));
+    }
+
+    private static <T> Slice<T> toSlice(List<T> items, Pageable pageRequest) {
+        boolean hasNext = items.size() > pageRequest.getPageSize();
+        return new SliceImpl<>(hasNext ? new ArrayList<>(items.subList(0, pageRequest.getPageSize())) : items, pageRequest, hasNext);
+    }
+
+    // a history query keyed by conversation/group id and sortId
+    private interface SliceQuery<T> {
+        Slice<T> find(String id, long sortId, Pageable pageable);
+    }
+
+    private static boolean isNewestPage(long beforeId) {
+        return beforeId >= MessageIdGenerator.firstIdAt(System.currentTimeMillis());
+    }
+
+    private ConversationRing<Message> newConversationRing() {
+        return new ConversationRing<>(ringSize, Message::getSortId, Message::getId, MessageCache::weigh);
+    }
+
+    private ConversationRing<GroupMessage> newGroupRing() {
+        return new ConversationRing<>(ringSize, GroupMessage::getSortId, GroupMessage::getId, MessageCache::weigh);
+    }
+
+    // rough heap size of a message, strings are 2 bytes a char plus object overhead
+    private static long weigh(Message message) {
+        return 200 + 2L * (message.getContent() == null ? 0 : message.getContent().length());
+    }
+
+    private static long weigh(GroupMessage groupMessage) {
+        return 200 + 2L * (groupMessage.getContent() == null ? 0 : groupMessage.getContent().length());
+    }
+
+    // a ring created by a write only knows the messages written since, which is still a valid newest run of the conversation
+    private void cache(Message message) {
+        conversationRings.asMap().compute(message.getConversationId(), (id, ring) -> {
+            ConversationRing<Message> updated = ring == null ? newConversationRing() : ring;
+            updated.add(message);
+            return updated;
+        });
+    }
+
+    private void cache(GroupMessage groupMessage) {
+        groupRings.asMap().compute(groupMessage.getGroupId(), (id, ring) -> {
+            ConversationRing<GroupMessage> updated = ring == null ? newGroupRing() : ring;
+            updated.add(groupMessage);
+            return updated;
+        });
     }
 
     public Message createMessage(Message message) {
-        String toId = message.getTo();
-        String fromId = message.getFrom();
+        if (message.getSortId() == null) {
+            message.setSortId(legacySortId(message.getTime()));
+        }
 
-        if (!userUnreadMessages.containsEntry(toId, fromId)) {
-            userUnreadMessages.put(toId, fromId);
-            userUnreadMessageTimes.put(toId + fromId, message.getTime());
+        if (journaled) {
+            // the id has to exist before the message is written, the sender and the recipients get it right away
+            message.setId(new ObjectId().toHexString());
+            await(messageJournal.append(message));
+            countUnread(message);
+            cache(message);
+            return message;
         }
 
-        // if they're creating a message, they must have seen the previous message
-        markMessageAsSeen(fromId, toId);
+        if (messageWriteBehind == null) {
+            Message inserted = messageRepository.insert(message);
+            countUnread(inserted);
+            cache(inserted);
+            return inserted;
+        }
+
+        message.setId(new ObjectId().toHexString());
+        // with ack=before-flush the message counts once it's buffered, like it's acknowledged then
+        awaitIfAckAfterFlush(messageWriteBehind.submit(message));
+        countUnread(message);
+        cache(message);
+        return message;
+    }
+
+    // only once the message is persisted, a failed write mustn't leave an unread count behind (it would be snapshotted too)
+    // the message isn't delivered yet, so it can't have been seen in between
+    private void countUnread(Message message) {
+        unreadCounters.increment(message.getTo(), message.getFrom(), message.getSortId(), message.getTime());
 
-        return messageRepository.insert(message);
+        // if they're creating a message, they must have seen the previous message
+        unreadCounters.clear(message.getFrom(), message.getTo(), message.getSortId());
     }
 
     public GroupMessage createGroupMessage(GroupMessage groupMessage) {
-        return groupMessageRepository.insert(groupMessage);
+        if (groupMessage.getSortId() == null) {
+            groupMessage.setSortId(legacySortId(groupMessage.getTime()));
+        }
+
+        if (journaled) {
+            groupMessage.setId(new ObjectId().toHexString());
+            await(messageJournal.append(groupMessage));
+            cache(groupMessage);
+            return groupMessage;
+        }
+
+        if (groupMessageWriteBehind == null) {
+            GroupMessage inserted = groupMessageRepository.insert(groupMessage);
+            cache(inserted);
+            return inserted;
+        }
+
+        groupMessage.setId(new ObjectId().toHexString());
+        awaitIfAckAfterFlush(groupMessageWriteBehind.submit(groupMessage));
+        cache(groupMessage);
+        return groupMessage;
     }
 
-    // We should probably expand this to include the timestamp of the oldest unread message
-    public Map<String, Long> getUnreadMessageCounts(String userId) {
-        Map<String, Long> unreadMessageCounts = new HashMap<>();
-        Pageable pageRequest = PageRequest.of(0, 1);
-        Set<String> fromIds = userUnreadMessages.get(userId);
-        for (String fromId : fromIds) {
-            Long time;
-            try {
-                time = userUnreadMessageTimes.getUnchecked(userId + fromId);
-            } catch (CacheLoader.InvalidCacheLoadException e) {
-                log.error("getUnreadMessageCounts failes to find unread message time for user {} from user {}", userId, fromId);
-                userUnreadMessages.remove(userId, fromId);
-                continue;
-            }
+    // for messages created without a MessageIdGenerator id, unique within a conversation because times used to be (see SortIdBackfill)
+    static long legacySortId(Long time) {
+        return MessageIdGenerator.firstIdAt(time == null ? 0 : time);
+    }
 
-            String conversationId = MessageService.getConversationId(userId, fromId);
-            Page<Message> unreadMessages = messageRepository.findMessagesToUserAfterTime(conversationId, time, pageRequest);
-            long messageCount = unreadMessages.getTotalElements();
-            unreadMessageCounts.put(fromId, messageCount);
+    private void awaitIfAckAfterFlush(CompletableFuture<Void> written) {
+        if (ackAfterFlush) {
+            await(written);
         }
+    }
+
+    // bounded so a stuck journal or writer fails the send instead of holding the request thread forever
+    private void await(CompletableFuture<Void> written) {
+        try {
+            written.get(persistenceAwaitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new RepositoryException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new RepositoryException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(e);
+        }
+    }
 
-        return unreadMessageCounts;
+    public Map<String, Long> getUnreadMessageCounts(String userId) {
+        return unreadCounters.getCounts(userId);
+    }
+
+    // count and oldest unread time per sender
+    public Map<String, UnreadCountDTO> getUnreadMessageSummary(String userId) {
+        return unreadCounters.getSummary(userId);
     }
 
     public void markMessageAsSeen(String userId, String fromId) {
-        userUnreadMessages.remove(userId, fromId);
-        userUnreadMessageTimes.invalidate(userId + fromId);
+        unreadCounters.clear(userId, fromId, seenUpToNow());
     }
 
     public void markAllAsSeen(String userId) {
-        Set<String> fromIds = userUnreadMessages.get(userId);
-        for (String fromId : fromIds) {
-            userUnreadMessageTimes.invalidate(userId + fromId);
-        }
+        unreadCounters.clearAll(userId, seenUpToNow());
+    }
+
+    // every id made before the next millisecond
+    private static long seenUpToNow() {
+        return MessageIdGenerator.firstIdAt(System.currentTimeMillis() + 1) - 1;
+    }
 
-        userUnreadMessages.removeAll(userId);
+    UnreadCounters getUnreadCounters() {
+        return unreadCounters;
     }
 }
@@ -0,0 +1,458 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wizphil.instantmessenger.persistence.GroupMessage;
+import com.wizphil.instantmessenger.persistence.Message;
+import com.wizphil.instantmessenger.repository.GroupMessageRepository;
+import com.wizphil.instantmessenger.repository.MessageRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Local write ahead journal in front of the message repositories (message.persistence.mode=journal)
+// A message is acknowledged once it's in a memory mapped journal segment and that segment was forced to disk, a single syncer thread
+// forces once for everything appended since the last force, so concurrent senders share one fsync
+// A shipper thread then writes the journaled messages to mongo in batches, retrying for as long as mongo is unavailable,
+// and records how far it got in a checkpoint file. Segments entirely before the checkpoint are deleted.
+// On startup everything after the checkpoint is replayed into mongo, inserts are idempotent because ids are assigned before journaling
+// The replay is shipped before init returns, beans that read messages from mongo on startup depend on this one so they see them
+// (GroupReadCursors continues each group's seq, UnreadSnapshotter catches up on the messages after its snapshot)
+@Component
+@Setter
+@Slf4j
+public class MessageJournal {
+    private static final byte MESSAGE = 1;
+    private static final byte GROUP_MESSAGE = 2;
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final long RETRY_BACKOFF_MS = 1000;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private GroupMessageRepository groupMessageRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${message.persistence.mode:sync}")
+    private String persistenceMode;
+
+    @Value("${message.journal.dir:journal}")
+    private String directoryName;
+
+    @Value("${message.journal.segment-size-bytes:67108864}")
+    private int segmentSize;
+
+    @Value("${message.journal.ship-batch-size:256}")
+    private int shipBatchSize;
+
+    private Path directory;
+
+    // guards the active segment and the entries waiting for the next force
+    private final Object appendLock = new Object();
+    private JournalSegment activeSegment;
+    private List<Entry> unsyncedEntries = new ArrayList<>();
+    private List<JournalSegment> unsyncedSegments = new ArrayList<>();
+
+    // forced to disk, waiting to be written to mongo
+    private final BlockingQueue<Entry> unshippedEntries = new LinkedBlockingQueue<>();
+    // acknowledged but not in mongo yet, by message id, so a lookup right after the ack finds them (see MessageCache.getMessage)
+    // added before the sender is acknowledged and removed only after mongo took the message, so a miss here means mongo has it
+    private final Map<String, Object> unshippedById = new ConcurrentHashMap<>();
+    // every segment file that hasn't been deleted yet, by id
+    private final Map<Long, Path> segments = new ConcurrentSkipListMap<>();
+
+    private Timer syncTimer;
+    private Timer shipTimer;
+    private Thread syncer;
+    private Thread shipper;
+    private volatile boolean running;
+    // set if a force failed, nothing can be acknowledged after that so every append fails (guarded by appendLock)
+    private Throwable failure;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!"journal".equals(persistenceMode)) {
+            return;
+        }
+
+        directory = Paths.get(directoryName);
+        Files.createDirectories(directory);
+
+        syncTimer = meterRegistry.timer("message.journal.sync");
+        shipTimer = meterRegistry.timer("message.journal.ship");
+        Gauge.builder("message.journal.unshipped", unshippedEntries, BlockingQueue::size).register(meterRegistry);
+
+        long nextSegmentId = replay();
+        shipReplayed();
+        activeSegment = JournalSegment.create(directory, nextSegmentId, segmentSize);
+        segments.put(activeSegment.getId(), activeSegment.getPath());
+
+        running = true;
+        syncer = new Thread(this::runSyncer, "message-journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        shipper = new Thread(this::runShipper, "message-journal-ship");
+        shipper.setDaemon(true);
+        shipper.start();
+        log.info("Message journal started in {}", directory.toAbsolutePath());
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        syncer.join(TimeUnit.SECONDS.toMillis(10));
+        // anything the shipper didn't get to is replayed on the next start
+        shipper.interrupt();
+        shipper.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    // completes once the message is on disk
+    public CompletableFuture<Void> append(Message message) {
+        return append(MESSAGE, message);
+    }
+
+    public CompletableFuture<Void> append(GroupMessage groupMessage) {
+        return append(GROUP_MESSAGE, groupMessage);
+    }
+
+    // null unless the message is acknowledged and still waiting to be shipped
+    public Message getUnshippedMessage(String id) {
+        Object message = unshippedById.get(id);
+        return message instanceof Message ? (Message) message : null;
+    }
+
+    public GroupMessage getUnshippedGroupMessage(String id) {
+        Object message = unshippedById.get(id);
+        return message instanceof GroupMessage ? (GroupMessage) message : null;
+    }
+
+    private CompletableFuture<Void> append(byte type, Object message) {
+        byte[] payload;
+        try {
+            payload = objectMapper.writeValueAsBytes(message);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        Entry entry = new Entry(message);
+        synchronized (appendLock) {
+            if (!running) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Message journal is shut down"));
+            }
+
+            if (failure != null) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Message journal failed to sync", failure));
+            }
+
+            int endOffset = activeSegment.append(type, payload);
+            if (endOffset < 0) {
+                roll();
+                endOffset = activeSegment.append(type, payload);
+                if (endOffset < 0) {
+                    return CompletableFuture.failedFuture(new IllegalArgumentException("Message of " + payload.length + " bytes doesn't fit in a journal segment"));
+                }
+            }
+
+            entry.segmentId = activeSegment.getId();
+            entry.endOffset = endOffset;
+            unsyncedEntries.add(entry);
+            appendLock.notifyAll();
+        }
+
+        return entry.synced;
+    }
+
+    // the full segment still has to be forced, the syncer closes it after that
+    private void roll() {
+        unsyncedSegments.add(activeSegment);
+        try {
+            activeSegment = JournalSegment.create(directory, activeSegment.getId() + 1, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        segments.put(activeSegment.getId(), activeSegment.getPath());
+    }
+
+    private void runSyncer() {
+        while (true) {
+            List<Entry> entries;
+            List<JournalSegment> fullSegments;
+            JournalSegment segment;
+            synchronized (appendLock) {
+                while (unsyncedEntries.isEmpty() && running) {
+                    try {
+                        appendLock.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+
+                if (unsyncedEntries.isEmpty()) {
+                    try {
+                        activeSegment.force();
+                    } catch (RuntimeException e) {
+                        log.error("Failed to force journal segment {} on shutdown", activeSegment.getId(), e);
+                    }
+
+                    activeSegment.close();
+                    return;
+                }
+
+                entries = unsyncedEntries;
+                fullSegments = unsyncedSegments;
+                segment = activeSegment;
+                unsyncedEntries = new ArrayList<>();
+                unsyncedSegments = new ArrayList<>();
+            }
+
+            long start = System.nanoTime();
+            try {
+                for (JournalSegment fullSegment : fullSegments) {
+                    fullSegment.force();
+                    fullSegment.close();
+                }
+
+                segment.force();
+            } catch (RuntimeException e) {
+                fail(entries, e);
+                return;
+            }
+
+            syncTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            for (Entry entry : entries) {
+                unshippedById.put(idOf(entry.message), entry.message);
+                unshippedEntries.add(entry);
+                entry.synced.complete(null);
+            }
+        }
+    }
+
+    // a segment couldn't be forced (disk error, closed channel), so these entries and everything appended after them can't be acknowledged
+    // fail them instead of leaving their senders waiting, the journal takes no more appends until it's restarted
+    private void fail(List<Entry> entries, RuntimeException e) {
+        log.error("Failed to force the message journal, failing {} unsynced messages and every later append", entries.size(), e);
+        List<Entry> failed = new ArrayList<>(entries);
+        synchronized (appendLock) {
+            failure = e;
+            failed.addAll(unsyncedEntries);
+            unsyncedEntries = new ArrayList<>();
+        }
+
+        for (Entry entry : failed) {
+            entry.synced.completeExceptionally(e);
+        }
+    }
+
+    private void runShipper() {
+        List<Entry> batch = new ArrayList<>(shipBatchSize);
+        while (true) {
+            try {
+                batch.add(unshippedEntries.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            unshippedEntries.drainTo(batch, shipBatchSize - 1);
+            if (!ship(batch)) {
+                return;
+            }
+
+            for (Entry entry : batch) {
+                unshippedById.remove(idOf(entry.message));
+            }
+
+            Entry last = batch.get(batch.size() - 1);
+            checkpoint(last.segmentId, last.endOffset);
+            batch.clear();
+        }
+    }
+
+    // startup waits here for as long as mongo is unavailable, like it would for the first query of any other bean
+    private void shipReplayed() {
+        int shipped = 0;
+        List<Entry> batch = new ArrayList<>(shipBatchSize);
+        while (unshippedEntries.drainTo(batch, shipBatchSize) > 0) {
+            if (!ship(batch)) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while shipping the replayed message journal");
+            }
+
+            Entry last = batch.get(batch.size() - 1);
+            checkpoint(last.segmentId, last.endOffset);
+            shipped += batch.size();
+            batch.clear();
+        }
+
+        if (shipped > 0) {
+            log.info("Shipped {} journaled messages left over from the last run", shipped);
+        }
+    }
+
+    // keeps retrying until mongo takes the batch, returns false if we were interrupted (shutting down)
+    private boolean ship(List<Entry> batch) {
+        List<Message> messages = new ArrayList<>();
+        List<GroupMessage> groupMessages = new ArrayList<>();
+        for (Entry entry : batch) {
+            if (entry.message instanceof Message) {
+                messages.add((Message) entry.message);
+            } else {
+                groupMessages.add((GroupMessage) entry.message);
+            }
+        }
+
+        while (true) {
+            long start = System.nanoTime();
+            try {
+                insert(messageRepository::insert, messageRepository::saveAll, messages);
+                insert(groupMessageRepository::insert, groupMessageRepository::saveAll, groupMessages);
+                shipTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return true;
+            } catch (RuntimeException e) {
+                log.warn("Failed to ship {} journaled messages, retrying", batch.size(), e);
+                try {
+                    Thread.sleep(RETRY_BACKOFF_MS);
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static <T> void insert(Consumer<List<T>> insertAll, Consumer<List<T>> saveAll, List<T> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        try {
+            insertAll.accept(items);
+        } catch (DuplicateKeyException e) {
+            // part of this batch was shipped before a crash or a failed attempt, saving is an upsert by id
+            saveAll.accept(items);
+        }
+    }
+
+    private void checkpoint(long segmentId, int offset) {
+        ByteBuffer checkpoint = ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(segmentId).putInt(offset);
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            Files.write(temp, checkpoint.array());
+            Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // not fatal, we'd just replay (idempotently) a bit more on the next start
+            log.error("Failed to write message journal checkpoint", e);
+            return;
+        }
+
+        for (Long id : segments.keySet()) {
+            if (id >= segmentId) {
+                break;
+            }
+
+            try {
+                Files.deleteIfExists(segments.remove(id));
+            } catch (IOException e) {
+                log.warn("Failed to delete shipped journal segment {}", id, e);
+            }
+        }
+    }
+
+    // queues everything after the checkpoint for shipReplayed, returns the id for the next segment
+    private long replay() throws IOException {
+        long checkpointSegmentId = 0;
+        int checkpointOffset = 0;
+        Path checkpointPath = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpointPath)) {
+            ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointPath));
+            checkpointSegmentId = checkpoint.getLong();
+            checkpointOffset = checkpoint.getInt();
+        }
+
+        List<Path> segmentPaths = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> JournalSegment.id(path) >= 0).sorted().forEach(segmentPaths::add);
+        }
+
+        long nextSegmentId = checkpointSegmentId + 1;
+        for (Path path : segmentPaths) {
+            long id = JournalSegment.id(path);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            segments.put(id, path);
+            if (id < checkpointSegmentId) {
+                continue;
+            }
+
+            JournalSegment segment = JournalSegment.open(path);
+            segment.read(id == checkpointSegmentId ? checkpointOffset : 0, (type, payload, endOffset) -> {
+                Entry entry = new Entry(decode(type, payload));
+                entry.segmentId = id;
+                entry.endOffset = endOffset;
+                unshippedEntries.add(entry);
+            });
+            segment.close();
+        }
+
+        return nextSegmentId;
+    }
+
+    private static String idOf(Object message) {
+        return message instanceof Message ? ((Message) message).getId() : ((GroupMessage) message).getId();
+    }
+
+    private static Object decode(byte type, byte[] payload) {
+        try {
+            Class<?> messageClass = type == MESSAGE ? Message.class : GroupMessage.class;
+            return objectMapper.readValue(payload, messageClass);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Entry {
+        private final Object message;
+        private final CompletableFuture<Void> synced = new CompletableFuture<>();
+        private long segmentId;
+        private int endOffset;
+
+        private Entry(Object message) {
+            this.message = message;
+        }
+    }
+}
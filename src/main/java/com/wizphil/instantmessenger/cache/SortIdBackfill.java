@@ -0,0 +1,69 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.persistence.GroupMessage;
+import com.wizphil.instantmessenger.persistence.Message;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.function.Function;
+
+// History is paged by sortId, messages stored before sortId existed get one derived from their time (see MessageCache.legacySortId)
+// Runs once, a marker in the migrations collection records that it finished
+@Component
+@Slf4j
+public class SortIdBackfill {
+    private static final int BATCH_SIZE = 1000;
+    private static final String MIGRATIONS = "migrations";
+    private static final String MARKER_ID = "sortId-backfill";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @PostConstruct
+    public void init() {
+        Query marker = Query.query(Criteria.where("_id").is(MARKER_ID));
+        if (mongoTemplate.exists(marker, MIGRATIONS)) {
+            return;
+        }
+
+        backfill(Message.class, Message::getId, Message::getTime);
+        backfill(GroupMessage.class, GroupMessage::getId, GroupMessage::getTime);
+        mongoTemplate.save(new Document("_id", MARKER_ID).append("time", System.currentTimeMillis()), MIGRATIONS);
+    }
+
+    private <T> void backfill(Class<T> type, Function<T, String> idOf, Function<T, Long> timeOf) {
+        Query missing = Query.query(Criteria.where("sortId").exists(false));
+        missing.fields().include("_id").include("time");
+
+        long start = System.currentTimeMillis();
+        int updated = 0;
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, type);
+        try (CloseableIterator<T> messages = mongoTemplate.stream(missing, type)) {
+            while (messages.hasNext()) {
+                T message = messages.next();
+                bulk.updateOne(Query.query(Criteria.where("_id").is(idOf.apply(message))), Update.update("sortId", MessageCache.legacySortId(timeOf.apply(message))));
+                if (++updated % BATCH_SIZE == 0) {
+                    bulk.execute();
+                    bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, type);
+                }
+            }
+        }
+
+        if (updated % BATCH_SIZE != 0) {
+            bulk.execute();
+        }
+
+        if (updated > 0) {
+            log.info("Backfilled sortId on {} {} documents in {}ms", updated, type.getSimpleName(), System.currentTimeMillis() - start);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.dto.SyncEventDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+// The last sync.log.capacity events that were pushed to clients (messages, status and profile changes, group membership changes),
+// so a client that was asleep or disconnected can ask for what it missed instead of reloading everything (see SyncService)
+// Every event gets the next seq, a client's cursor is the seq of the last event it has
+// The log only lives in memory, epoch tells cursors handed out by an earlier run (or another node) apart, those need a full resync
+@Component
+@Setter
+public class SyncEventLog {
+    @Value("${sync.log.capacity:100000}")
+    private int capacity;
+
+    @Getter
+    private final long epoch = System.currentTimeMillis();
+
+    private SyncEvent[] events;
+    // seq of the newest event, 0 before the first one
+    private long headSeq;
+
+    @PostConstruct
+    public void init() {
+        events = new SyncEvent[capacity];
+    }
+
+    // userIds is who can see the event, null means every user
+    public synchronized void append(MessageCategory category, Object payload, Collection<String> userIds) {
+        headSeq++;
+        events[(int) (headSeq % events.length)] = new SyncEvent(headSeq, category, payload, userIds == null ? null : Set.copyOf(userIds));
+    }
+
+    public synchronized long getHeadSeq() {
+        return headSeq;
+    }
+
+    // up to limit events after afterSeq that userId can see, oldest first, or null if the log doesn't go back that far anymore
+    public synchronized Batch read(String userId, long afterSeq, int limit) {
+        long oldestSeq = Math.max(1, headSeq - events.length + 1);
+        if (afterSeq < oldestSeq - 1 || afterSeq > headSeq) {
+            return null;
+        }
+
+        List<SyncEventDTO> visible = new ArrayList<>();
+        long seq = afterSeq;
+        while (seq < headSeq && visible.size() < limit) {
+            seq++;
+            SyncEvent event = events[(int) (seq % events.length)];
+            if (event.userIds == null || event.userIds.contains(userId)) {
+                visible.add(new SyncEventDTO(event.seq, event.category, event.payload));
+            }
+        }
+
+        return new Batch(visible, seq, seq < headSeq);
+    }
+
+    @Getter
+    public static final class Batch {
+        private final List<SyncEventDTO> events;
+        // the seq the next read should start after, everything up to here was looked at
+        private final long lastSeq;
+        private final boolean hasMore;
+
+        private Batch(List<SyncEventDTO> events, long lastSeq, boolean hasMore) {
+            this.events = events;
+            this.lastSeq = lastSeq;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private static final class SyncEvent {
+        private final long seq;
+        private final MessageCategory category;
+        private final Object payload;
+        private final Set<String> userIds;
+
+        private SyncEvent(long seq, MessageCategory category, Object payload, Set<String> userIds) {
+            this.seq = seq;
+            this.category = category;
+            this.payload = payload;
+            this.userIds = userIds;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.dto.UnreadCountDTO;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Unread private message counts, kept up to date as messages are created and seen, so reading them never touches the database
+// recipient userId -> sender userId -> (count, time of the oldest unread message, sortId of the newest message applied)
+// A conversation that was seen keeps a zero count entry for a while, so replaying messages after a restart (see UnreadSnapshotter)
+// can tell which messages were already counted or seen
+class UnreadCounters {
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, UnreadCount>> unreadByUser = new ConcurrentHashMap<>();
+    private final LongAdder changes = new LongAdder();
+
+    void increment(String userId, String fromId, long sortId, long time) {
+        getUnread(userId).merge(fromId, new UnreadCount(1, time, sortId), UnreadCount::plus);
+        changes.increment();
+    }
+
+    // seenId is the sortId of the last message seen
+    // a message newer than that may already be counted (a sender's own message clears with its own sortId), that count is kept
+    void clear(String userId, String fromId, long seenId) {
+        getUnread(userId).compute(fromId, (id, unreadCount) -> UnreadCount.seenUpTo(unreadCount, seenId));
+        changes.increment();
+    }
+
+    void clearAll(String userId, long seenId) {
+        getUnread(userId).replaceAll((fromId, unreadCount) -> UnreadCount.seenUpTo(unreadCount, seenId));
+        changes.increment();
+    }
+
+    // replays a message that may already be counted, messages older than the newest one applied to the conversation are skipped
+    void replayIncrement(String userId, String fromId, long sortId, long time) {
+        getUnread(userId).compute(fromId, (id, unreadCount) -> {
+            if (unreadCount == null) {
+                return new UnreadCount(1, time, sortId);
+            }
+
+            return sortId > unreadCount.newestId ? unreadCount.plus(new UnreadCount(1, time, sortId)) : unreadCount;
+        });
+        changes.increment();
+    }
+
+    void replayClear(String userId, String fromId, long seenId) {
+        getUnread(userId).compute(fromId, (id, unreadCount) -> unreadCount == null || seenId > unreadCount.newestId ? UnreadCount.seen(seenId) : unreadCount);
+        changes.increment();
+    }
+
+    private ConcurrentHashMap<String, UnreadCount> getUnread(String userId) {
+        return unreadByUser.computeIfAbsent(userId, id -> new ConcurrentHashMap<>());
+    }
+
+    Map<String, Long> getCounts(String userId) {
+        Map<String, Long> counts = new HashMap<>();
+        Map<String, UnreadCount> unread = unreadByUser.get(userId);
+        if (unread != null) {
+            unread.forEach((fromId, unreadCount) -> {
+                if (unreadCount.count > 0) {
+                    counts.put(fromId, unreadCount.count);
+                }
+            });
+        }
+
+        return counts;
+    }
+
+    Map<String, UnreadCountDTO> getSummary(String userId) {
+        Map<String, UnreadCountDTO> summary = new HashMap<>();
+        Map<String, UnreadCount> unread = unreadByUser.get(userId);
+        if (unread != null) {
+            unread.forEach((fromId, unreadCount) -> {
+                if (unreadCount.count > 0) {
+                    summary.put(fromId, new UnreadCountDTO(unreadCount.count, unreadCount.oldestTime));
+                }
+            });
+        }
+
+        return summary;
+    }
+
+    // seen entries older than this can't be told apart from a replayed message anymore, so they're just taking up space
+    void pruneSeen(long olderThanId) {
+        unreadByUser.values().forEach(unread -> unread.values().removeIf(unreadCount -> unreadCount.count == 0 && unreadCount.newestId < olderThanId));
+    }
+
+    long getChangeCount() {
+        return changes.sum();
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        Map<String, Map<String, UnreadCount>> copy = new HashMap<>();
+        unreadByUser.forEach((userId, unread) -> {
+            if (!unread.isEmpty()) {
+                copy.put(userId, new HashMap<>(unread));
+            }
+        });
+
+        out.writeInt(copy.size());
+        for (Map.Entry<String, Map<String, UnreadCount>> user : copy.entrySet()) {
+            out.writeUTF(user.getKey());
+            out.writeInt(user.getValue().size());
+            for (Map.Entry<String, UnreadCount> sender : user.getValue().entrySet()) {
+                out.writeUTF(sender.getKey());
+                out.writeLong(sender.getValue().count);
+                out.writeLong(sender.getValue().oldestTime);
+                out.writeLong(sender.getValue().newestId);
+            }
+        }
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        int users = in.readInt();
+        for (int i = 0; i < users; i++) {
+            ConcurrentHashMap<String, UnreadCount> unread = getUnread(in.readUTF());
+            int senders = in.readInt();
+            for (int j = 0; j < senders; j++) {
+                unread.put(in.readUTF(), new UnreadCount(in.readLong(), in.readLong(), in.readLong()));
+            }
+        }
+    }
+
+    // immutable so readers never see a count and time from different updates
+    private static final class UnreadCount {
+        private final long count;
+        private final long oldestTime;
+        private final long newestId;
+
+        private UnreadCount(long count, long oldestTime, long newestId) {
+            this.count = count;
+            this.oldestTime = oldestTime;
+            this.newestId = newestId;
+        }
+
+        private static UnreadCount seen(long seenId) {
+            return new UnreadCount(0, 0, seenId);
+        }
+
+        private static UnreadCount seenUpTo(UnreadCount unreadCount, long seenId) {
+            return unreadCount == null || seenId >= unreadCount.newestId ? seen(seenId) : unreadCount;
+        }
+
+        private UnreadCount plus(UnreadCount other) {
+            long oldest = count == 0 ? other.oldestTime : Math.min(oldestTime, other.oldestTime);
+            return new UnreadCount(count + other.count, oldest, Math.max(newestId, other.newestId));
+        }
+    }
+}
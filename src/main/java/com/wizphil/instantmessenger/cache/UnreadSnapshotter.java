@@ -0,0 +1,206 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.persistence.GroupMessage;
+import com.wizphil.instantmessenger.persistence.Message;
+import com.wizphil.instantmessenger.repository.GroupMessageRepository;
+import com.wizphil.instantmessenger.repository.MessageRepository;
+import com.wizphil.instantmessenger.service.MessageIdGenerator;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Unread counts (UnreadCounters) and group read cursors (GroupReadCursors) only live in memory, so we snapshot them to a local file
+// On startup the snapshot is loaded and caught up by replaying the messages created after it was taken, nothing is recounted
+// The snapshot records the time it was taken, replay starts a margin before that, replaying a message twice is harmless (see replayIncrement)
+// A snapshot is only written when something changed since the last one
+// The snapshot is restored (and replayed) on startup before requests are served, so nothing a client does can be overwritten by it,
+// which means journaled (and backfilled) messages have to be in mongo by then: both beans finish their startup work in init
+// (MessageJournal ships what it replays before init returns) and this one depends on them
+// Group cursors are restored before the groups are loaded, GroupReadCursors holds them until the members are known,
+// so snapshots are only taken once the warm-up has loaded every group (see WarmUpService)
+@Component
+@DependsOn({"messageJournal", "sortIdBackfill"})
+@Setter
+@Slf4j
+public class UnreadSnapshotter {
+    private static final int MAGIC = 0x554e5244;
+    private static final int VERSION = 2;
+
+    @Autowired
+    private MessageCache messageCache;
+
+    @Autowired
+    private GroupReadCursors groupReadCursors;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private GroupMessageRepository groupMessageRepository;
+
+    @Value("${unread.snapshot.file:unread.snapshot}")
+    private String snapshotFile;
+
+    // 0 disables snapshots, unread state is then lost on restart
+    @Value("${unread.snapshot.interval-ms:30000}")
+    private long intervalMs;
+
+    // covers messages that were counted after their id was assigned and clocks that are slightly off
+    @Value("${unread.snapshot.replay-margin-ms:60000}")
+    private long replayMarginMs;
+
+    // zero count "seen" entries pile up with every conversation, they're pruned on this schedule whether snapshots are enabled or not
+    @Value("${unread.seen.prune-interval-ms:60000}")
+    private long pruneIntervalMs;
+
+    private Path path;
+    private ScheduledExecutorService executor;
+    private long lastChangeCount = -1;
+
+    @PostConstruct
+    public void init() {
+        if (intervalMs <= 0) {
+            log.info("Unread snapshots disabled");
+            return;
+        }
+
+        path = Paths.get(snapshotFile);
+        restore();
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "unread-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::pruneSeen, pruneIntervalMs, pruneIntervalMs, TimeUnit.MILLISECONDS);
+        if (intervalMs > 0) {
+            executor.scheduleWithFixedDelay(this::snapshot, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (intervalMs > 0) {
+            snapshot();
+        }
+    }
+
+    // the next snapshot's replay starts a margin before it's taken, entries seen well before that aren't needed to tell replayed messages apart
+    void pruneSeen() {
+        try {
+            messageCache.getUnreadCounters().pruneSeen(MessageIdGenerator.firstIdAt(System.currentTimeMillis() - 2 * replayMarginMs));
+        } catch (RuntimeException e) {
+            // an exception would cancel the scheduled prune
+            log.error("Failed to prune seen unread counts", e);
+        }
+    }
+
+    synchronized void snapshot() {
+        try {
+            UnreadCounters unreadCounters = messageCache.getUnreadCounters();
+            long changeCount = unreadCounters.getChangeCount() + groupReadCursors.getChangeCount();
+            if (changeCount == lastChangeCount) {
+                return;
+            }
+
+            // taken before we start copying, anything that changes while we write is replayed again on startup
+            long watermark = System.currentTimeMillis();
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(watermark);
+                unreadCounters.writeTo(out);
+                groupReadCursors.writeTo(out);
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastChangeCount = changeCount;
+            log.debug("Wrote unread snapshot in {}ms", System.currentTimeMillis() - watermark);
+        } catch (IOException | RuntimeException e) {
+            // an exception would cancel the scheduled snapshot, so we never let one escape
+            log.error("Failed to write unread snapshot {}", path, e);
+        }
+    }
+
+    private void restore() {
+        if (!Files.exists(path)) {
+            // we'd have to recount every conversation, start empty like we always used to instead
+            log.info("No unread snapshot at {}, starting without unread state", path.toAbsolutePath());
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long watermark;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.error("Unread snapshot {} has an unknown format, starting without unread state", path.toAbsolutePath());
+                return;
+            }
+
+            watermark = in.readLong();
+            messageCache.getUnreadCounters().readFrom(in);
+            groupReadCursors.readFrom(in);
+        } catch (IOException e) {
+            log.error("Failed to read unread snapshot {}, starting without unread state", path.toAbsolutePath(), e);
+            return;
+        }
+
+        int replayed = replay(new ObjectId(new Date(watermark - replayMarginMs)));
+        log.info("Restored unread snapshot from {} and replayed {} messages in {}ms", new Date(watermark), replayed, System.currentTimeMillis() - start);
+    }
+
+    // mirrors what MessageCache.createMessage and MessageService.sendGroupMessage do to the unread state
+    private int replay(ObjectId after) {
+        UnreadCounters unreadCounters = messageCache.getUnreadCounters();
+        int replayed = 0;
+        try (Stream<Message> messages = messageRepository.streamCreatedAfter(after)) {
+            for (Message message : (Iterable<Message>) messages::iterator) {
+                long sortId = message.getSortId() == null ? MessageCache.legacySortId(message.getTime()) : message.getSortId();
+                unreadCounters.replayIncrement(message.getTo(), message.getFrom(), sortId, message.getTime());
+                unreadCounters.replayClear(message.getFrom(), message.getTo(), sortId);
+                replayed++;
+            }
+        }
+
+        try (Stream<GroupMessage> groupMessages = groupMessageRepository.streamCreatedAfter(after)) {
+            for (GroupMessage groupMessage : (Iterable<GroupMessage>) groupMessages::iterator) {
+                if (groupMessage.getSeq() != null) {
+                    groupReadCursors.replay(groupMessage.getGroupId(), groupMessage.getFrom(), groupMessage.getSeq());
+                }
+                replayed++;
+            }
+        }
+
+        return replayed;
+    }
+}
@@ -1,8 +1,11 @@
 package com.wizphil.instantmessenger.cache;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import com.wizphil.instantmessenger.exceptions.DuplicateEntityException;
 import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
 import com.wizphil.instantmessenger.exceptions.RepositoryException;
@@ -12,9 +15,13 @@ import com.wizphil.instantmessenger.repository.UserRepository;
 import com.wizphil.instantmessenger.service.UserService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Component
 @Slf4j
@@ -30,38 +37,95 @@ public class UserCache {
         }
     });
 
-    private final LoadingCache<String, String> usernameToId = CacheBuilder.newBuilder().build(new CacheLoader<>() {
-        @Override
-        public String load(String username) {
-            User user = userRepository.findFirstByUserDetails_Username(username);
-            return user == null ? null : user.getId();
-        }
-    });
+    private final Cache<String, String> usernameToId = CacheBuilder.newBuilder().build();
+
+    // Guava never caches a null, so without these every lookup of an unknown id/username (sign up checks, typos) would go to the database
+    @Value("${user.cache.negative-ttl-ms:60000}")
+    private long negativeTtlMs;
+
+    @Value("${user.cache.bloom-fpp:0.01}")
+    private double bloomFalsePositiveRate;
+
+    private Cache<String, Boolean> missingIds;
+    private Cache<String, Boolean> missingUsernames;
+
+    // Every username we know of, built in loadAll (or the warm-up) and added to on create/update
+    // A username the filter has never seen definitely doesn't exist, so we don't even check the negative cache or the database
+    // Until loadAll runs (or after clearAll) this is null and every miss goes through the negative cache
+    private volatile BloomFilter<CharSequence> knownUsernames;
+
+    // the filter the warm-up is building, guava's filters aren't thread safe so it's synchronized on, like knownUsernames
+    // users created while warming up go in here too, so finishWarmUp doesn't hand over a filter that's missing them
+    private volatile BloomFilter<CharSequence> warmingUsernames;
+
+    @PostConstruct
+    public void init() {
+        missingIds = CacheBuilder.newBuilder().expireAfterWrite(negativeTtlMs, TimeUnit.MILLISECONDS).maximumSize(100_000).build();
+        missingUsernames = CacheBuilder.newBuilder().expireAfterWrite(negativeTtlMs, TimeUnit.MILLISECONDS).maximumSize(100_000).build();
+    }
 
     public List<User> loadAll() {
         List<User> allUsers = userRepository.findAll();
+
+        // leave room to grow, a filter that's over capacity gives more false positives but never false negatives
+        BloomFilter<CharSequence> usernames = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), Math.max(allUsers.size() * 2L, 10_000), bloomFalsePositiveRate);
         for (User user : allUsers) {
             userCache.put(user.getId(), user);
             usernameToId.put(user.getUserDetails().getUsername(), user.getId());
+            usernames.put(user.getUserDetails().getUsername());
         }
 
+        knownUsernames = usernames;
+        missingIds.invalidateAll();
+        missingUsernames.invalidateAll();
         return allUsers;
     }
 
+    // loadAll in pieces, for the startup warm-up (see WarmUpService), warm can be called from several threads at once
+    // the username filter is only used once finishWarmUp is called, until then misses go through the negative cache like before loadAll
+    public void startWarmUp(long expectedUsers) {
+        warmingUsernames = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), Math.max(expectedUsers * 2, 10_000), bloomFalsePositiveRate);
+    }
+
+    // REST isn't held back during the warm-up, so a user that was updated (and cached) meanwhile keeps the newer copy
+    public void warm(List<User> users) {
+        for (User user : users) {
+            userCache.asMap().putIfAbsent(user.getId(), user);
+            usernameToId.asMap().putIfAbsent(user.getUserDetails().getUsername(), user.getId());
+        }
+
+        BloomFilter<CharSequence> usernames = warmingUsernames;
+        synchronized (usernames) {
+            for (User user : users) {
+                usernames.put(user.getUserDetails().getUsername());
+            }
+        }
+    }
+
+    public void finishWarmUp() {
+        knownUsernames = warmingUsernames;
+        warmingUsernames = null;
+        missingIds.invalidateAll();
+        missingUsernames.invalidateAll();
+    }
+
     public User get(String id) {
+        if (id == null || missingIds.getIfPresent(id) != null) {
+            return null;
+        }
+
         try {
             return userCache.getUnchecked(id);
         } catch (CacheLoader.InvalidCacheLoadException e) {
             log.warn("get failed to find user {}", id);
+            missingIds.put(id, Boolean.TRUE);
             return null;
         }
     }
 
     public User getByUsername(String username) {
-        String id;
-        try {
-            id = usernameToId.getUnchecked(username);
-        } catch (CacheLoader.InvalidCacheLoadException e) {
+        String id = getUserId(username);
+        if (id == null) {
             log.warn("getByUsername failed to find user for username {}", username);
             return null;
         }
@@ -69,6 +133,59 @@ public class UserCache {
         return get(id);
     }
 
+    private String getUserId(String username) {
+        if (username == null) {
+            return null;
+        }
+
+        String id = usernameToId.getIfPresent(username);
+        if (id != null) {
+            return id;
+        }
+
+        BloomFilter<CharSequence> usernames = knownUsernames;
+        if (usernames != null && !mightContain(usernames, username)) {
+            return null;
+        }
+
+        if (missingUsernames.getIfPresent(username) != null) {
+            return null;
+        }
+
+        User user = userRepository.findFirstByUserDetails_Username(username);
+        if (user == null) {
+            missingUsernames.put(username, Boolean.TRUE);
+            return null;
+        }
+
+        usernameToId.put(username, user.getId());
+        return user.getId();
+    }
+
+    private void addKnownUsername(String username) {
+        missingUsernames.invalidate(username);
+        BloomFilter<CharSequence> warming = warmingUsernames;
+        if (warming != null) {
+            synchronized (warming) {
+                warming.put(username);
+            }
+        }
+
+        BloomFilter<CharSequence> usernames = knownUsernames;
+        if (usernames != null) {
+            synchronized (usernames) {
+                usernames.put(username);
+            }
+        }
+    }
+
+    // guava 20's filters aren't thread safe, concurrent puts can lose bits and a read during a put may miss a username that was just added
+    private static boolean mightContain(BloomFilter<CharSequence> usernames, String username) {
+        synchronized (usernames) {
+            return usernames.mightContain(username);
+        }
+    }
+
     public User updateUser(User user) {
         log.info("updateUser started {}", user);
         UserService.validateUser(user);
@@ -98,6 +215,7 @@ public class UserCache {
         if (!oldUsername.equals(newUsername)) {
             usernameToId.invalidate(oldUsername);
             usernameToId.put(newUsername, user.getId());
+            addKnownUsername(newUsername);
         }
 
         log.info("updateUser finished; new user {} old user {}", user, oldUser);
@@ -105,14 +223,7 @@ public class UserCache {
     }
 
     public boolean isExistingUsername(String username) {
-
-        try {
-            usernameToId.getUnchecked(username);
-            return true;
-        } catch (CacheLoader.InvalidCacheLoadException e) {
-            log.warn("getByUsername failed to find user for username {}", username);
-            return false;
-        }
+        return getUserId(username) != null;
     }
 
     public User createUser(User user) {
@@ -139,6 +250,8 @@ public class UserCache {
 
         userCache.put(user.getId(), user);
         usernameToId.put(username, user.getId());
+        missingIds.invalidate(user.getId());
+        addKnownUsername(username);
 
         log.info("createUser finished {}", user);
         return user;
@@ -147,5 +260,8 @@ public class UserCache {
     public void clearAll() {
         userCache.invalidateAll();
         usernameToId.invalidateAll();
+        missingIds.invalidateAll();
+        missingUsernames.invalidateAll();
+        knownUsernames = null;
     }
 }
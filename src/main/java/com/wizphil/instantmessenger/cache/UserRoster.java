@@ -0,0 +1,89 @@
+package com.wizphil.instantmessenger.cache;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Versions the roster (the user info every client loads on login, see UserService.getAllUserInfo)
+// Every change to a user's entry (created, profile, status, enabled, disabled) bumps the version and remembers which user it was,
+// so "what changed since version v" only looks at the users that changed, and an unchanged roster can be answered with a 304
+// Versions start at the startup time * 1000 so they keep increasing across restarts, versions from before that aren't tracked
+@Component
+public class UserRoster {
+    private final long baseVersion = System.currentTimeMillis() * 1000;
+
+    // ordered by id for cursor paging
+    private final NavigableSet<String> userIds = new ConcurrentSkipListSet<>();
+
+    // guarded by this, each user is in here once, under the version of their latest change
+    private final NavigableMap<Long, String> userIdByVersion = new TreeMap<>();
+    private final Map<String, Long> versionByUserId = new HashMap<>();
+    private long version = baseVersion;
+
+    // the users loaded on startup, they're part of the base version, so the roster isn't served until they all are (see UserController)
+    public void load(Collection<String> ids) {
+        userIds.addAll(ids);
+    }
+
+    // call after the user's info is updated, so a client that sees the new version also sees the new info
+    public synchronized long put(String userId) {
+        userIds.add(userId);
+        return bump(userId);
+    }
+
+    public synchronized long remove(String userId) {
+        userIds.remove(userId);
+        return bump(userId);
+    }
+
+    private long bump(String userId) {
+        version++;
+        Long previous = versionByUserId.put(userId, version);
+        if (previous != null) {
+            userIdByVersion.remove(previous);
+        }
+
+        userIdByVersion.put(version, userId);
+        return version;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public boolean contains(String userId) {
+        return userIds.contains(userId);
+    }
+
+    // users whose entry changed after sinceVersion, or null if sinceVersion is from before we started tracking
+    public synchronized List<String> changedSince(long sinceVersion) {
+        if (sinceVersion < baseVersion) {
+            return null;
+        }
+
+        return new ArrayList<>(userIdByVersion.tailMap(sinceVersion, false).values());
+    }
+
+    // up to limit user ids after afterUserId, in id order, null starts at the beginning
+    public List<String> page(String afterUserId, int limit) {
+        NavigableSet<String> after = afterUserId == null ? userIds : userIds.tailSet(afterUserId, false);
+        List<String> page = new ArrayList<>(limit);
+        for (String userId : after) {
+            if (page.size() == limit) {
+                break;
+            }
+
+            page.add(userId);
+        }
+
+        return page;
+    }
+}
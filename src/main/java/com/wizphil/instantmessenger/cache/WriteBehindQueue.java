@@ -0,0 +1,197 @@
+package com.wizphil.instantmessenger.cache;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Buffers writes and hands them to the sink (a bulk insert) in batches from a few background writer threads, aka group commit
+// A writer takes everything that's buffered (up to maxBatchSize), so while one batch is being written the next one builds up
+// maxDelayMs > 0 additionally makes a writer wait that long for a batch to fill before writing it
+// Every submitted item gets a future that completes when its batch was written, callers decide whether to wait for it
+// A failed batch is retried a few times before its futures fail, so a short database hiccup doesn't lose anything
+// Part of a failed batch may have been written anyway (an ordered insertMany stops at the first error, a timeout can hide a write the server applied),
+// so retries go to resendSink, which must be idempotent (an upsert by the items' pre-assigned ids)
+// When the backlog is full, submit blocks until the writer catches up
+@Slf4j
+public class WriteBehindQueue<T> {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MS = 100;
+
+    private final String name;
+    private final Consumer<List<T>> sink;
+    private final Consumer<List<T>> resendSink;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+    private final BlockingQueue<Pending<T>> backlog;
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizes;
+    private final Thread[] writers;
+
+    private volatile boolean running = true;
+
+    // for sinks that are idempotent themselves
+    public WriteBehindQueue(String name, Consumer<List<T>> sink, int writerCount, int maxBatchSize, long maxDelayMs, int maxBacklog, MeterRegistry meterRegistry) {
+        this(name, sink, sink, writerCount, maxBatchSize, maxDelayMs, maxBacklog, meterRegistry);
+    }
+
+    public WriteBehindQueue(String name, Consumer<List<T>> sink, Consumer<List<T>> resendSink, int writerCount, int maxBatchSize, long maxDelayMs, int maxBacklog,
+                            MeterRegistry meterRegistry) {
+        this.name = name;
+        this.sink = sink;
+        this.resendSink = resendSink;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+        this.backlog = new LinkedBlockingQueue<>(maxBacklog);
+
+        flushTimer = Timer.builder("message.persistence.flush").tag("queue", name).register(meterRegistry);
+        batchSizes = DistributionSummary.builder("message.persistence.batch.size").tag("queue", name).register(meterRegistry);
+        Gauge.builder("message.persistence.backlog", backlog, BlockingQueue::size).tag("queue", name).register(meterRegistry);
+
+        writers = new Thread[writerCount];
+        for (int i = 0; i < writerCount; i++) {
+            writers[i] = new Thread(this::run, "write-behind-" + name + "-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    public CompletableFuture<Void> submit(T item) {
+        Pending<T> pending = new Pending<>(item);
+        if (!running) {
+            pending.future.completeExceptionally(new IllegalStateException("Write behind queue " + name + " is shut down"));
+            return pending.future;
+        }
+
+        try {
+            backlog.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future.completeExceptionally(e);
+        }
+
+        return pending.future;
+    }
+
+    public int getBacklog() {
+        return backlog.size();
+    }
+
+    // writes whatever is still buffered, then stops the writer
+    public void shutdown() {
+        running = false;
+        try {
+            for (Thread writer : writers) {
+                writer.join(TimeUnit.SECONDS.toMillis(10));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!backlog.isEmpty()) {
+            log.error("Write behind queue {} shut down with {} unwritten items", name, backlog.size());
+        }
+    }
+
+    private void run() {
+        List<Pending<T>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !backlog.isEmpty()) {
+            try {
+                Pending<T> first = backlog.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+                while (batch.size() < maxBatchSize) {
+                    backlog.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+
+                    Pending<T> next = backlog.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // only happens on shutdown, write what we have and keep draining
+                running = false;
+            }
+
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+
+        RuntimeException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            long start = System.nanoTime();
+            try {
+                (attempt == 1 ? sink : resendSink).accept(items);
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                batchSizes.record(items.size());
+                for (Pending<T> pending : batch) {
+                    pending.future.complete(null);
+                }
+
+                return;
+            } catch (RuntimeException e) {
+                failure = e;
+                log.warn("Write behind queue {} failed to write batch of {}, attempt {}", name, items.size(), attempt, e);
+                // a duplicate means the database is fine and part of the batch is already in, resend the rest right away
+                if (!(e instanceof DuplicateKeyException)) {
+                    sleepBeforeRetry(attempt);
+                }
+            }
+        }
+
+        log.error("Write behind queue {} gave up on batch of {} items {}", name, items.size(), items, failure);
+        for (Pending<T> pending : batch) {
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    private void sleepBeforeRetry(int attempt) {
+        if (attempt == MAX_ATTEMPTS) {
+            return;
+        }
+
+        try {
+            Thread.sleep(RETRY_BACKOFF_MS * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Pending<T> {
+        private final T item;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Pending(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.wizphil.instantmessenger.config;
+
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.WireFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A MessageWrapperDTO that is serialized at most once per wire format
+// Broadcasts hand the same instance to every recipient session, so a message going to a mix of v1 and v2 clients is encoded twice, not once per session
+public final class EncodedMessage {
+    private final MessageWrapperDTO messageWrapperDTO;
+    // String for text frames, byte[] for binary frames
+    private final AtomicReferenceArray<Object> encodings = new AtomicReferenceArray<>(WireFormat.values().length);
+
+    private EncodedMessage(MessageWrapperDTO messageWrapperDTO) {
+        this.messageWrapperDTO = messageWrapperDTO;
+    }
+
+    public static EncodedMessage encode(MessageWrapperDTO messageWrapperDTO) {
+        if (messageWrapperDTO == null) {
+            return null;
+        }
+
+        return new EncodedMessage(messageWrapperDTO);
+    }
+
+    public MessageCategory getCategory() {
+        return messageWrapperDTO.getCategory();
+    }
+
+    // returns null if the message could not be serialized
+    public String getText(WireFormat wireFormat) {
+        Object frame = getFrame(wireFormat);
+        return frame instanceof String ? (String) frame : null;
+    }
+
+    // every caller gets its own buffer over the shared bytes, since sending a buffer moves its position
+    // returns null if the message could not be serialized
+    public ByteBuffer getBinary(WireFormat wireFormat) {
+        return wrap(getFrame(wireFormat));
+    }
+
+    public static ByteBuffer wrap(Object frame) {
+        return frame instanceof byte[] ? ByteBuffer.wrap((byte[]) frame).asReadOnlyBuffer() : null;
+    }
+
+    // returns a String for text frames, a byte[] for binary frames, or null if the message could not be serialized
+    // two threads may race to encode the same format, both produce the same result and the first one wins
+    public Object getFrame(WireFormat wireFormat) {
+        Object frame = encodings.get(wireFormat.ordinal());
+        if (frame == null) {
+            frame = encode(wireFormat);
+            if (frame != null && !encodings.compareAndSet(wireFormat.ordinal(), null, frame)) {
+                frame = encodings.get(wireFormat.ordinal());
+            }
+        }
+
+        return frame;
+    }
+
+    private Object encode(WireFormat wireFormat) {
+        switch (wireFormat) {
+            case SmileV2:
+                return WebSocketSmileEncoder.encodeToBytes(messageWrapperDTO);
+            case CborV2:
+                return WebSocketCborEncoder.encodeToBytes(messageWrapperDTO);
+            default:
+                return WebSocketEncoder.encodeToString(messageWrapperDTO, wireFormat);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMessage(category=" + getCategory() + ")";
+    }
+}
@@ -0,0 +1,34 @@
+package com.wizphil.instantmessenger.config;
+
+import com.wizphil.instantmessenger.service.WarmUpService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+// Shows up as "warmUp" in /actuator/health, load balancers should only send traffic once the caches are warm
+// OUT_OF_SERVICE with the progress while warming up, DOWN if the warm-up failed
+@Component
+public class WarmUpHealthIndicator implements HealthIndicator {
+    @Autowired
+    private WarmUpService warmUpService;
+
+    @Override
+    public Health health() {
+        Health.Builder health;
+        if (warmUpService.getFailure() != null) {
+            health = Health.down().withDetail("error", warmUpService.getFailure().toString());
+        } else if (warmUpService.isReady()) {
+            health = Health.up();
+        } else {
+            health = Health.outOfService();
+        }
+
+        return health
+                .withDetail("usersLoaded", warmUpService.getUsersLoaded())
+                .withDetail("usersExpected", warmUpService.getExpectedUsers())
+                .withDetail("groupsLoaded", warmUpService.getGroupsLoaded())
+                .withDetail("groupsExpected", warmUpService.getExpectedGroups())
+                .build();
+    }
+}
@@ -0,0 +1,26 @@
+package com.wizphil.instantmessenger.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wizphil.instantmessenger.dto.MessageEnvelopeDTO;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import lombok.extern.slf4j.Slf4j;
+
+// Binary formats always write the v2 envelope, there is no reason to nest an escaped json string inside a binary document
+// These aren't container encoders, binary frames are serialized once per message by EncodedMessage and written by SessionOutboundQueue
+@Slf4j
+final class WebSocketBinaryEncoder {
+    private WebSocketBinaryEncoder() {
+    }
+
+    // returns null if the message could not be serialized
+    static byte[] encodeToBytes(ObjectMapper objectMapper, MessageWrapperDTO messageWrapper) {
+        try {
+            return objectMapper.writeValueAsBytes(MessageEnvelopeDTO.of(messageWrapper));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize object {}", messageWrapper, e);
+        }
+
+        return null;
+    }
+}
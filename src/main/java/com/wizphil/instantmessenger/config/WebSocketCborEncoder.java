@@ -0,0 +1,16 @@
+package com.wizphil.instantmessenger.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+
+public final class WebSocketCborEncoder {
+    static final ObjectMapper objectMapper = new ObjectMapper(new CBORFactory());
+
+    private WebSocketCborEncoder() {
+    }
+
+    public static byte[] encodeToBytes(MessageWrapperDTO messageWrapper) {
+        return WebSocketBinaryEncoder.encodeToBytes(objectMapper, messageWrapper);
+    }
+}
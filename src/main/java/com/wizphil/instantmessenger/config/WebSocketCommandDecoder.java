@@ -0,0 +1,38 @@
+package com.wizphil.instantmessenger.config;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.wizphil.instantmessenger.dto.CommandDTO;
+import com.wizphil.instantmessenger.enums.WireFormat;
+
+import java.io.IOException;
+
+// Reads inbound commands in the same format the session receives messages in
+// Text frames are always json, binary frames are smile or cbor for sessions that negotiated them and utf-8 json otherwise
+// Unknown properties are ignored so newer clients can talk to older servers
+public class WebSocketCommandDecoder {
+    private static final ObjectReader jsonReader = reader(new ObjectMapper());
+    private static final ObjectReader smileReader = reader(WebSocketSmileEncoder.objectMapper);
+    private static final ObjectReader cborReader = reader(WebSocketCborEncoder.objectMapper);
+
+    private static ObjectReader reader(ObjectMapper objectMapper) {
+        return objectMapper.readerFor(CommandDTO.class).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    public static CommandDTO decode(String text) throws IOException {
+        return jsonReader.readValue(text);
+    }
+
+    public static CommandDTO decode(byte[] bytes, WireFormat wireFormat) throws IOException {
+        if (wireFormat == WireFormat.SmileV2) {
+            return smileReader.readValue(bytes);
+        }
+
+        if (wireFormat == WireFormat.CborV2) {
+            return cborReader.readValue(bytes);
+        }
+
+        return jsonReader.readValue(bytes);
+    }
+}
@@ -2,7 +2,9 @@ package com.wizphil.instantmessenger.config;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wizphil.instantmessenger.dto.MessageEnvelopeDTO;
 import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.WireFormat;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.websocket.EncodeException;
@@ -15,7 +17,16 @@ public class WebSocketEncoder implements Encoder.Text<MessageWrapperDTO>  {
 
     @Override
     public String encode(MessageWrapperDTO messageWrapper) throws EncodeException {
+        return encodeToString(messageWrapper, WireFormat.JsonV1);
+    }
+
+    // shared with EncodedMessage so broadcasts can serialize once outside of the container
+    public static String encodeToString(MessageWrapperDTO messageWrapper, WireFormat wireFormat) {
         try {
+            if (wireFormat == WireFormat.JsonV2) {
+                return objectMapper.writeValueAsString(MessageEnvelopeDTO.of(messageWrapper));
+            }
+
             return objectMapper.writeValueAsString(messageWrapper);
         } catch (JsonProcessingException e) {
             log.error("Failed to serialize object {}", messageWrapper, e);
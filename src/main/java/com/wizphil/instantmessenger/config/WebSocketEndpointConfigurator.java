@@ -0,0 +1,29 @@
+package com.wizphil.instantmessenger.config;
+
+import javax.websocket.Extension;
+import javax.websocket.server.ServerEndpointConfig;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Compression is the container's standard permessage-deflate extension (RFC 7692), negotiated with any client that offers it
+// Browsers and most websocket libraries offer it by default, clients that don't just get uncompressed frames
+// websocket.compression.enabled=false stops us from accepting it, for when the cpu matters more than the bandwidth
+// Everything else is left to the container's default configurator
+public class WebSocketEndpointConfigurator extends ServerEndpointConfig.Configurator {
+    private static final String PER_MESSAGE_DEFLATE = "permessage-deflate";
+
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+        List<Extension> negotiated = super.getNegotiatedExtensions(installed, requested);
+        if (isCompressionEnabled()) {
+            return negotiated;
+        }
+
+        return negotiated.stream().filter(extension -> !PER_MESSAGE_DEFLATE.equals(extension.getName())).collect(Collectors.toList());
+    }
+
+    // read per handshake, the endpoint is configured before the application context is
+    private static boolean isCompressionEnabled() {
+        return SpringContext.getApplicationContext().getEnvironment().getProperty("websocket.compression.enabled", Boolean.class, true);
+    }
+}
@@ -0,0 +1,20 @@
+package com.wizphil.instantmessenger.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+
+public final class WebSocketSmileEncoder {
+    // shared names and values let smile back-reference repeated keys like "userStatus" and "category"
+    static final ObjectMapper objectMapper = new ObjectMapper(new SmileFactory()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+
+    private WebSocketSmileEncoder() {
+    }
+
+    public static byte[] encodeToBytes(MessageWrapperDTO messageWrapper) {
+        return WebSocketBinaryEncoder.encodeToBytes(objectMapper, messageWrapper);
+    }
+}
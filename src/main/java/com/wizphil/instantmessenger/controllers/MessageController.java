@@ -1,6 +1,8 @@
 package com.wizphil.instantmessenger.controllers;
 
 import com.wizphil.instantmessenger.dto.MessageDTO;
+import com.wizphil.instantmessenger.dto.MessageSliceDTO;
+import com.wizphil.instantmessenger.dto.UnreadCountDTO;
 import com.wizphil.instantmessenger.interfaces.IMessageController;
 import com.wizphil.instantmessenger.persistence.GroupMessage;
 import com.wizphil.instantmessenger.persistence.Message;
@@ -12,10 +14,13 @@ import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -31,12 +36,47 @@ public class MessageController implements IMessageController {
         return messageService.getMessage(id);
     }
 
+    @Override
+    @GetMapping
+    public List<Message> getMessages(@RequestParam("ids") List<String> ids) {
+        return messageService.getMessages(ids);
+    }
+
+    @Override
+    @GetMapping("/group")
+    public List<GroupMessage> getGroupMessages(@RequestParam("ids") List<String> ids) {
+        return messageService.getGroupMessages(ids);
+    }
+
+    // history without a total count, direction is before (older, newest first) or after (newer, oldest first)
+    // cursor is the nextCursor of the previous slice, leave it out to start at either end of the conversation
+    @Override
+    @GetMapping("/history/user1/{user1Id}/user2/{user2Id}")
+    public MessageSliceDTO<Message> getHistory(@PathVariable("user1Id") String user1Id, @PathVariable("user2Id") String user2Id,
+                                               @RequestParam(value = "direction", defaultValue = "before") String direction,
+                                               @RequestParam(value = "cursor", required = false) String cursor,
+                                               @RequestParam(value = "limit", required = false) Integer limit) {
+        return messageService.getPrivateChatHistory(user1Id, user2Id, direction, cursor, limit);
+    }
+
+    @Override
+    @GetMapping("/history/group/{groupId}")
+    public MessageSliceDTO<GroupMessage> getHistory(@PathVariable("groupId") String groupId,
+                                                    @RequestParam(value = "direction", defaultValue = "before") String direction,
+                                                    @RequestParam(value = "cursor", required = false) String cursor,
+                                                    @RequestParam(value = "limit", required = false) Integer limit) {
+        return messageService.getGroupChatHistory(groupId, direction, cursor, limit);
+    }
+
+    // use /history instead
+    @Deprecated
     @Override
     @GetMapping("/conversation/user1/{user1Id}/user2/{user2Id}/before/{time}")
     public Page<Message> getConversation(@PathVariable("user1Id") String user1Id, @PathVariable("user2Id") String user2Id, @PathVariable("time") long time) {
         return messageService.getPrivateChatConversation(user1Id, user2Id, time);
     }
 
+    @Deprecated
     @Override
     @GetMapping("/conversation/group/{groupId}/before/{time}")
     public Page<GroupMessage> getConversation(@PathVariable("groupId") String groupId, @PathVariable("time") long time) {
@@ -79,6 +119,30 @@ public class MessageController implements IMessageController {
         return messageService.getUnreadMessageCounts(userId);
     }
 
+    @Override
+    @GetMapping("/unread/user/{userId}/summary")
+    public Map<String, UnreadCountDTO> getUnreadMessageSummary(@PathVariable("userId") String userId) {
+        return messageService.getUnreadMessageSummary(userId);
+    }
+
+    @Override
+    @GetMapping("/unread/user/{userId}/groups")
+    public Map<String, Long> getGroupUnreadMessageCounts(@PathVariable("userId") String userId) {
+        return messageService.getGroupUnreadMessageCounts(userId);
+    }
+
+    @Override
+    @PutMapping("/unread/user/{userId}/group/{groupId}/seq/{seq}")
+    public void markGroupMessagesAsSeen(@PathVariable("userId") String userId, @PathVariable("groupId") String groupId, @PathVariable("seq") long seq) {
+        messageService.markGroupMessagesAsSeen(userId, groupId, seq);
+    }
+
+    @Override
+    @DeleteMapping("/unread/user/{userId}/group/{groupId}")
+    public void markAllGroupMessagesAsSeen(@PathVariable("userId") String userId, @PathVariable("groupId") String groupId) {
+        messageService.markGroupMessagesAsSeen(userId, groupId, null);
+    }
+
     @Override
     @DeleteMapping("/unread/user/{userId}/from/{fromId}")
     public void markMessageAsSeen(String userId, String fromId) {
@@ -0,0 +1,49 @@
+package com.wizphil.instantmessenger.controllers;
+
+import com.wizphil.instantmessenger.exceptions.SessionNotFoundException;
+import com.wizphil.instantmessenger.interfaces.ISessionController;
+import com.wizphil.instantmessenger.service.SessionService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+import java.util.Set;
+
+@RestController
+@RequestMapping("/v1/session")
+@Slf4j
+public class SessionController implements ISessionController {
+    @Autowired
+    private SessionService sessionService;
+
+    @Override
+    @GetMapping("/outbound/depth")
+    public Map<String, Integer> getOutboundQueueDepths() {
+        return sessionService.getOutboundQueueDepths();
+    }
+
+    // The session will only receive presence updates (status, profile changes) for these users
+    @Override
+    @PutMapping("/{sessionId}/interest")
+    public void setPresenceInterests(@PathVariable("sessionId") String sessionId, @RequestBody Set<String> userIds) {
+        if (!sessionService.setPresenceInterests(sessionId, userIds)) {
+            throw new SessionNotFoundException(sessionId);
+        }
+    }
+
+    // Puts the session back on the global presence feed
+    @Override
+    @DeleteMapping("/{sessionId}/interest")
+    public void clearPresenceInterests(@PathVariable("sessionId") String sessionId) {
+        if (!sessionService.setPresenceInterests(sessionId, null)) {
+            throw new SessionNotFoundException(sessionId);
+        }
+    }
+}
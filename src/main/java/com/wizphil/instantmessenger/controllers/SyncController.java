@@ -0,0 +1,26 @@
+package com.wizphil.instantmessenger.controllers;
+
+import com.wizphil.instantmessenger.dto.SyncDTO;
+import com.wizphil.instantmessenger.interfaces.ISyncController;
+import com.wizphil.instantmessenger.service.SyncService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/v1/sync")
+@Slf4j
+public class SyncController implements ISyncController {
+    @Autowired
+    private SyncService syncService;
+
+    // Everything the user missed since the cursor from their last sync, leave since out the first time
+    @Override
+    @GetMapping
+    public SyncDTO sync(@RequestParam("userId") String userId, @RequestParam(value = "since", required = false) String since) {
+        return syncService.sync(userId, since);
+    }
+}
@@ -1,22 +1,31 @@
 package com.wizphil.instantmessenger.controllers;
 
+import com.wizphil.instantmessenger.dto.RosterDTO;
 import com.wizphil.instantmessenger.dto.UserInfoDTO;
 import com.wizphil.instantmessenger.persistence.user.UserDetails;
 import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.exceptions.WarmingUpException;
 import com.wizphil.instantmessenger.interfaces.IUserController;
 import com.wizphil.instantmessenger.persistence.user.User;
+import com.wizphil.instantmessenger.service.SerializedRoster;
 import com.wizphil.instantmessenger.service.UserService;
+import com.wizphil.instantmessenger.service.WarmUpService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
-import java.util.Collection;
 
 @RestController
 @RequestMapping("/v1/user")
@@ -25,6 +34,9 @@ public class UserController implements IUserController {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private WarmUpService warmUpService;
+
     @Override
     @PostMapping
     public User createUser(@RequestBody UserDetails userDetails) {
@@ -61,10 +73,55 @@ public class UserController implements IUserController {
         return userService.getUserByUsername(username);
     }
 
+    // The whole roster, 304 when the client's If-None-Match is the roster version
+    // The bytes are serialized (and gzipped) once and shared by every login, not serialized per request
     @Override
     @GetMapping("/info")
-    public Collection<UserInfoDTO> getAllUserInfo() {
-        return userService.getAllUserInfo();
+    public ResponseEntity<byte[]> getAllUserInfo(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                 WebRequest webRequest) {
+        requireWarm();
+        SerializedRoster roster = userService.getSerializedRoster();
+        if (webRequest.checkNotModified(String.valueOf(roster.getVersion()))) {
+            return null;
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (SerializedRoster.acceptsGzip(acceptEncoding)) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(roster.getGzip());
+        }
+
+        return response.body(roster.getJson());
+    }
+
+    // Only the users that changed since the client's version of the roster
+    @Override
+    @GetMapping(value = "/info", params = "sinceVersion")
+    public RosterDTO getUserInfoChangedSince(@RequestParam("sinceVersion") long sinceVersion, WebRequest webRequest) {
+        requireWarm();
+        if (webRequest.checkNotModified(String.valueOf(userService.getRosterVersion()))) {
+            return null;
+        }
+
+        return userService.getUserInfoChangedSince(sinceVersion);
+    }
+
+    // The roster one page at a time, leave cursor out for the first page
+    @Override
+    @GetMapping("/info/page")
+    public RosterDTO getUserInfoPage(@RequestParam(value = "cursor", required = false) String cursor,
+                                     @RequestParam(value = "limit", required = false) Integer limit) {
+        requireWarm();
+        return userService.getUserInfoPage(cursor, limit);
+    }
+
+    // The users loaded during the warm-up aren't versioned (they're all part of the base version), a roster read before it's done would be
+    // missing users and still look current, so the roster endpoints answer 503 until the warm-up is done
+    private void requireWarm() {
+        if (!warmUpService.isReady()) {
+            throw new WarmingUpException();
+        }
     }
 
     @Override
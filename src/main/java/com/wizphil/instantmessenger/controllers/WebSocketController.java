@@ -1,45 +1,96 @@
 package com.wizphil.instantmessenger.controllers;
 
 import com.wizphil.instantmessenger.config.SpringContext;
+import com.wizphil.instantmessenger.config.WebSocketCommandDecoder;
 import com.wizphil.instantmessenger.config.WebSocketEncoder;
+import com.wizphil.instantmessenger.config.WebSocketEndpointConfigurator;
+import com.wizphil.instantmessenger.dto.CommandDTO;
+import com.wizphil.instantmessenger.dto.MessageEnvelopeDTO;
+import com.wizphil.instantmessenger.enums.WireFormat;
+import com.wizphil.instantmessenger.service.CommandService;
 import com.wizphil.instantmessenger.service.UserService;
+import com.wizphil.instantmessenger.service.WarmUpService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import javax.websocket.CloseReason;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
+import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
+import java.io.IOException;
+import java.util.List;
 
 // All users will create a WebSocket connection to mark themselves as online
 // If the connection is closed or errors out, we use UserService to mark the session as closed
+// Clients pick their message format with the websocket subprotocol (see WireFormat)
+// Clients that can't set a subprotocol can opt in to json v2 by connecting to /session/user/{userId}?version=2, everyone else gets v1
+// Clients can also send commands (CommandDTO) over the socket instead of making http requests, replies come back as CommandReply messages
+// Connections are turned away with TRY_AGAIN_LATER until the caches are warm (see WarmUpService)
 // @ServerEndpoint(value = "/session/{userId}/status/{status}", configurator = SpringConfigurator.class)
-@ServerEndpoint(value = "/session/user/{userId}", encoders = WebSocketEncoder.class)
+@ServerEndpoint(value = "/session/user/{userId}", encoders = WebSocketEncoder.class, configurator = WebSocketEndpointConfigurator.class,
+        subprotocols = {WireFormat.SMILE_V2_SUBPROTOCOL, WireFormat.CBOR_V2_SUBPROTOCOL, WireFormat.JSON_V2_SUBPROTOCOL, WireFormat.JSON_V1_SUBPROTOCOL})
 @Slf4j
 public class WebSocketController {
 
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private CommandService commandService;
+
+    @Autowired
+    private WarmUpService warmUpService;
+
     public WebSocketController() {
         this.userService = (UserService) SpringContext.getApplicationContext().getBean("userService");
+        this.commandService = (CommandService) SpringContext.getApplicationContext().getBean("commandService");
+        this.warmUpService = (WarmUpService) SpringContext.getApplicationContext().getBean("warmUpService");
     }
 
     //public void onOpen(Session session, @PathParam("userId") String userId, @PathParam("status") Status status) {
     @OnOpen
-    public void onOpen(Session session, @PathParam("userId") String userId) {
+    public void onOpen(Session session, @PathParam("userId") String userId) throws IOException {
+        if (!warmUpService.isReady()) {
+            log.info("Session {} of user {} turned away, still warming up", session.getId(), userId);
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Warming up"));
+            return;
+        }
+
         // Get session and WebSocket connection
-        log.info("Session opened, sessionId: {}, userId: {}", session.getId(), userId);
-        userService.newUserSession(userId, session);
+        WireFormat wireFormat = getWireFormat(session);
+        log.info("Session opened, sessionId: {}, userId: {}, wireFormat: {}", session.getId(), userId, wireFormat);
+        userService.newUserSession(userId, session, wireFormat);
+    }
+
+    @OnMessage
+    public void onMessage(Session session, @PathParam("userId") String userId, String message) {
+        CommandDTO command;
+        try {
+            command = WebSocketCommandDecoder.decode(message);
+        } catch (IOException e) {
+            commandService.rejectMalformed(session.getId(), e);
+            return;
+        }
+
+        commandService.handle(userId, session.getId(), command);
     }
 
-//    @OnMessage
-//    public void onMessage(Session session, Message message) {
-//        // Handle new messages
-//        log.info("Message received, sessionId: {} message: {}", session.getId(), message);
-//    }
+    @OnMessage
+    public void onBinaryMessage(Session session, @PathParam("userId") String userId, byte[] message) {
+        CommandDTO command;
+        try {
+            command = WebSocketCommandDecoder.decode(message, getWireFormat(session));
+        } catch (IOException e) {
+            commandService.rejectMalformed(session.getId(), e);
+            return;
+        }
+
+        commandService.handle(userId, session.getId(), command);
+    }
 
     @OnClose
     public void onClose(Session session) {
@@ -48,6 +99,28 @@ public class WebSocketController {
         userService.endUserSession(session);
     }
 
+    private static WireFormat getWireFormat(Session session) {
+        String subprotocol = session.getNegotiatedSubprotocol();
+        if (subprotocol != null && !subprotocol.isEmpty()) {
+            WireFormat wireFormat = WireFormat.fromSubprotocol(subprotocol);
+            if (wireFormat != null) {
+                return wireFormat;
+            }
+        }
+
+        List<String> versions = session.getRequestParameterMap().get("version");
+        if (versions == null || versions.isEmpty()) {
+            return WireFormat.JsonV1;
+        }
+
+        if (String.valueOf(MessageEnvelopeDTO.VERSION).equals(versions.get(0))) {
+            return WireFormat.JsonV2;
+        }
+
+        log.warn("Session requested unknown message format version {}, falling back to v1. sessionId: {}", versions.get(0), session.getId());
+        return WireFormat.JsonV1;
+    }
+
     @OnError
     public void onError(Session session, Throwable throwable) {
         // Do error handling here
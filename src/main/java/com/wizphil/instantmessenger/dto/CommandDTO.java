@@ -0,0 +1,31 @@
+package com.wizphil.instantmessenger.dto;
+
+import com.wizphil.instantmessenger.enums.CommandType;
+import com.wizphil.instantmessenger.enums.Status;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// An inbound websocket command, the sender is always the user that owns the socket
+// SendDirectMessage: userId, content
+// SendGroupMessage: groupId, content
+// Typing: userId or groupId
+// SetStatus: status
+// MarkSeen: userId (the user whose messages were seen), or groupId and optionally seq (the last group message seen, default all)
+// Sync: cursor (the cursor of the last sync, leave it out the first time), the result is sent to the session as a Sync message
+// requestId is echoed back in the CommandReply, commands without one only get a reply when they fail
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CommandDTO {
+    private String requestId;
+    private CommandType type;
+    private String userId;
+    private String groupId;
+    private String content;
+    private Status status;
+    private Long seq;
+    private String cursor;
+}
@@ -0,0 +1,20 @@
+package com.wizphil.instantmessenger.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// status is the http status the equivalent rest endpoint would have returned
+// result is the id of the created message for SendDirectMessage and SendGroupMessage
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CommandReplyDTO {
+    private String requestId;
+    private boolean success;
+    private int status;
+    private String error;
+    private String result;
+}
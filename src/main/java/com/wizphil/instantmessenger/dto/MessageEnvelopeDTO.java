@@ -0,0 +1,21 @@
+package com.wizphil.instantmessenger.dto;
+
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// Version 2 of the socket message format
+// Unlike MessageWrapperDTO, the content is written as a real json object instead of an escaped json string
+@Data
+@AllArgsConstructor
+public class MessageEnvelopeDTO {
+    public static final int VERSION = 2;
+
+    private int version;
+    private MessageCategory category;
+    private Object content;
+
+    public static MessageEnvelopeDTO of(MessageWrapperDTO messageWrapperDTO) {
+        return new MessageEnvelopeDTO(VERSION, messageWrapperDTO.getCategory(), messageWrapperDTO.getPayload());
+    }
+}
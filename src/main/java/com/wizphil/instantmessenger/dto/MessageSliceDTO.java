@@ -0,0 +1,19 @@
+package com.wizphil.instantmessenger.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// One page of history, there's no total count because counting a conversation costs as much as reading it
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageSliceDTO<T> {
+    private List<T> messages;
+    // null when there's nothing more in this direction, otherwise pass it back as cursor with the same direction
+    private String nextCursor;
+}
@@ -1,5 +1,6 @@
 package com.wizphil.instantmessenger.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wizphil.instantmessenger.enums.MessageCategory;
@@ -12,14 +13,25 @@ public class MessageWrapperDTO {
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
     MessageCategory category;
+    // the payload is only serialized into a json string for v1 clients, v2 clients get it as a nested object
+    @JsonIgnore
+    Object payload;
     String content;
 
-    public MessageWrapperDTO(MessageCategory category, Object content) {
+    public MessageWrapperDTO(MessageCategory category, Object payload) {
         this.category = category;
-        try {
-            this.content = objectMapper.writeValueAsString(content);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize object {}", content, e);
+        this.payload = payload;
+    }
+
+    public String getContent() {
+        if (content == null) {
+            try {
+                content = objectMapper.writeValueAsString(payload);
+            } catch (JsonProcessingException e) {
+                log.error("Failed to serialize object {}", payload, e);
+            }
         }
+
+        return content;
     }
-}
\ No newline at end of file
+}
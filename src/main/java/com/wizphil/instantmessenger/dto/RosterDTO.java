@@ -0,0 +1,26 @@
+package com.wizphil.instantmessenger.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// Part of the roster (see UserRoster)
+// For changes since a version: the users whose info changed and the ids of users that were disabled since
+// full means the version is too old to answer, the client has to load the whole roster again
+// For a page of the full roster: version is the roster version when the page was read, clients should keep the version of their first page
+// and ask for the changes since it once they have every page
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RosterDTO {
+    private long version;
+    private boolean full;
+    private List<UserInfoDTO> users;
+    private List<String> removedUserIds;
+    // null when this is the last page
+    private String nextCursor;
+}
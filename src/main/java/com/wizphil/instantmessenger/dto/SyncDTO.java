@@ -0,0 +1,27 @@
+package com.wizphil.instantmessenger.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+// What changed for a user since their cursor
+// fullResync means the cursor is too old (or from before a restart), the client has to reload users, unread counts and history,
+// and keep the cursor to sync from afterwards
+// hasMore means events were left out to keep the response small, sync again with the new cursor
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SyncDTO {
+    private String cursor;
+    private boolean fullResync;
+    private boolean hasMore;
+    // oldest first, only the latest status change of each user is included
+    private List<SyncEventDTO> events;
+    private Map<String, Long> unreadCounts;
+    private Map<String, Long> groupUnreadCounts;
+}
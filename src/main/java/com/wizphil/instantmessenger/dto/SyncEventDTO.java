@@ -0,0 +1,18 @@
+package com.wizphil.instantmessenger.dto;
+
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// An event a client missed, category and payload are the same as the websocket message it would have received
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SyncEventDTO {
+    private long seq;
+    private MessageCategory category;
+    private Object payload;
+}
@@ -0,0 +1,16 @@
+package com.wizphil.instantmessenger.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UnreadCountDTO {
+    private long count;
+    // time of the oldest unread message, clients can open the conversation at this point
+    private long oldestUnreadTime;
+}
@@ -0,0 +1,11 @@
+package com.wizphil.instantmessenger.enums;
+
+// Commands a client can send over its websocket instead of making an http request, see CommandDTO
+public enum CommandType {
+    SendDirectMessage,
+    SendGroupMessage,
+    Typing,
+    SetStatus,
+    MarkSeen,
+    Sync
+}
@@ -0,0 +1,26 @@
+package com.wizphil.instantmessenger.enums;
+
+// Which way a history page goes from its cursor
+public enum HistoryDirection {
+    // older messages, newest first
+    Before("before"),
+    // newer messages, oldest first
+    After("after");
+
+    private final String param;
+
+    HistoryDirection(String param) {
+        this.param = param;
+    }
+
+    // returns null if the request param isn't one of ours
+    public static HistoryDirection fromParam(String param) {
+        for (HistoryDirection direction : values()) {
+            if (direction.param.equalsIgnoreCase(param)) {
+                return direction;
+            }
+        }
+
+        return null;
+    }
+}
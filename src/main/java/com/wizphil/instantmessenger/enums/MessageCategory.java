@@ -4,6 +4,7 @@ public enum MessageCategory {
     DirectMessage,
     GroupMessage,
     UserTypingPing,
+    // only sent when typing.group.window-ms is 0, otherwise group typing is aggregated into GroupTyping
     GroupTypingPing,
     NewGroup,
     UsersAddedToGroup,
@@ -13,5 +14,13 @@ public enum MessageCategory {
     UpdateUserStatus,
     DisableUser,
     EstablisedSession,
-    CloseSession
+    CloseSession,
+    // a list of UserStatusDTO, the latest status of every user that changed status during the last coalescing window
+    PresenceBatch,
+    // a GroupUsersDTO with every user currently typing in the group, sent whenever that set changes (empty when everyone stopped)
+    GroupTyping,
+    // a CommandReplyDTO, only sent to the session that sent the command
+    CommandReply,
+    // a SyncDTO, the reply to a Sync command (see SyncService)
+    Sync
 }
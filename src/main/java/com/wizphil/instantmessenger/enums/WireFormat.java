@@ -0,0 +1,40 @@
+package com.wizphil.instantmessenger.enums;
+
+// How messages are written to a client's socket, picked by the client when it connects
+// Clients pick a format with the websocket subprotocol, or with ?version=2 for clients that can't set subprotocols
+// Compression isn't a format, clients offer the standard permessage-deflate extension for that (see WebSocketEndpointConfigurator)
+public enum WireFormat {
+    // {"category": "...", "content": "<payload serialized to a json string>"}
+    JsonV1(WireFormat.JSON_V1_SUBPROTOCOL),
+    // {"version": 2, "category": "...", "content": <payload as a json object>}
+    JsonV2(WireFormat.JSON_V2_SUBPROTOCOL),
+    // same document as JsonV2, written as binary frames
+    SmileV2(WireFormat.SMILE_V2_SUBPROTOCOL),
+    CborV2(WireFormat.CBOR_V2_SUBPROTOCOL);
+
+    public static final String JSON_V1_SUBPROTOCOL = "im.v1.json";
+    public static final String JSON_V2_SUBPROTOCOL = "im.v2.json";
+    public static final String SMILE_V2_SUBPROTOCOL = "im.v2.smile";
+    public static final String CBOR_V2_SUBPROTOCOL = "im.v2.cbor";
+
+    private final String subprotocol;
+
+    WireFormat(String subprotocol) {
+        this.subprotocol = subprotocol;
+    }
+
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    // returns null if the subprotocol isn't one of ours
+    public static WireFormat fromSubprotocol(String subprotocol) {
+        for (WireFormat wireFormat : values()) {
+            if (wireFormat.subprotocol.equals(subprotocol)) {
+                return wireFormat;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,10 @@
+package com.wizphil.instantmessenger.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class SessionNotFoundException extends ResponseStatusException {
+    public SessionNotFoundException(String id) {
+        super(HttpStatus.NOT_FOUND, "Session with id: " + id + " not found.");
+    }
+}
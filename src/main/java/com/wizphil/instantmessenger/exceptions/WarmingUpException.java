@@ -0,0 +1,10 @@
+package com.wizphil.instantmessenger.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class WarmingUpException extends ResponseStatusException {
+    public WarmingUpException() {
+        super(HttpStatus.SERVICE_UNAVAILABLE, "The server is still warming up, try again later.");
+    }
+}
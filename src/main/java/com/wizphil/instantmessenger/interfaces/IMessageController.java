@@ -1,16 +1,21 @@
 package com.wizphil.instantmessenger.interfaces;
 
 import com.wizphil.instantmessenger.dto.MessageDTO;
+import com.wizphil.instantmessenger.dto.MessageSliceDTO;
+import com.wizphil.instantmessenger.dto.UnreadCountDTO;
 import com.wizphil.instantmessenger.exceptions.DuplicateEntityException;
 import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
 import com.wizphil.instantmessenger.exceptions.NullIdException;
 import com.wizphil.instantmessenger.exceptions.RepositoryException;
+import com.wizphil.instantmessenger.exceptions.UserNotInGroupException;
 import com.wizphil.instantmessenger.persistence.GroupMessage;
 import com.wizphil.instantmessenger.persistence.Message;
 import org.springframework.data.domain.Page;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 
+import java.util.List;
 import java.util.Map;
 
 public interface IMessageController {
@@ -18,8 +23,20 @@ public interface IMessageController {
 
     GroupMessage getGroupMessage(@PathVariable("id") String id) throws NullIdException;
 
+    List<Message> getMessages(@RequestParam("ids") List<String> ids) throws NullIdException, InvalidEntityException;
+
+    List<GroupMessage> getGroupMessages(@RequestParam("ids") List<String> ids) throws NullIdException, InvalidEntityException;
+
+    MessageSliceDTO<Message> getHistory(@PathVariable("user1Id") String user1Id, @PathVariable("user2Id") String user2Id, @RequestParam("direction") String direction,
+                                        @RequestParam("cursor") String cursor, @RequestParam("limit") Integer limit) throws NullIdException, InvalidEntityException;
+
+    MessageSliceDTO<GroupMessage> getHistory(@PathVariable("groupId") String groupId, @RequestParam("direction") String direction,
+                                             @RequestParam("cursor") String cursor, @RequestParam("limit") Integer limit) throws NullIdException, InvalidEntityException;
+
+    @Deprecated
     Page<Message> getConversation(@PathVariable("user1Id") String user1Id, @PathVariable("user2Id") String user2Id, @PathVariable("time") long time);
 
+    @Deprecated
     Page<GroupMessage> getConversation(@PathVariable("groupId") String groupId, @PathVariable("time") long time);
 
     void sendIsTypingToUser(@PathVariable("fromId") String fromId, @PathVariable("toId") String toId);
@@ -32,6 +49,14 @@ public interface IMessageController {
 
     Map<String, Long> getUnreadMessageCounts(@PathVariable("userId") String userId);
 
+    Map<String, UnreadCountDTO> getUnreadMessageSummary(@PathVariable("userId") String userId) throws NullIdException;
+
+    Map<String, Long> getGroupUnreadMessageCounts(@PathVariable("userId") String userId) throws NullIdException;
+
+    void markGroupMessagesAsSeen(@PathVariable("userId") String userId, @PathVariable("groupId") String groupId, @PathVariable("seq") long seq) throws NullIdException, UserNotInGroupException;
+
+    void markAllGroupMessagesAsSeen(@PathVariable("userId") String userId, @PathVariable("groupId") String groupId) throws NullIdException, UserNotInGroupException;
+
     void markMessageAsSeen(@PathVariable("userId") String userId, @PathVariable("fromId")  String fromId);
 
     void markAllAsSeen(@PathVariable("userId") String userId);
@@ -0,0 +1,15 @@
+package com.wizphil.instantmessenger.interfaces;
+
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+
+import java.util.Map;
+import java.util.Set;
+
+public interface ISessionController {
+    Map<String, Integer> getOutboundQueueDepths();
+
+    void setPresenceInterests(@PathVariable("sessionId") String sessionId, @RequestBody Set<String> userIds);
+
+    void clearPresenceInterests(@PathVariable("sessionId") String sessionId);
+}
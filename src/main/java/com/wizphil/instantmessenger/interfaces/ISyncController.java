@@ -0,0 +1,10 @@
+package com.wizphil.instantmessenger.interfaces;
+
+import com.wizphil.instantmessenger.dto.SyncDTO;
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
+import com.wizphil.instantmessenger.exceptions.NullIdException;
+import org.springframework.web.bind.annotation.RequestParam;
+
+public interface ISyncController {
+    SyncDTO sync(@RequestParam("userId") String userId, @RequestParam("since") String since) throws NullIdException, InvalidEntityException;
+}
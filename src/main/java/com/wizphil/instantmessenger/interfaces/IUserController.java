@@ -1,13 +1,19 @@
 package com.wizphil.instantmessenger.interfaces;
 
+import com.wizphil.instantmessenger.dto.RosterDTO;
 import com.wizphil.instantmessenger.dto.UserInfoDTO;
 import com.wizphil.instantmessenger.persistence.user.UserDetails;
 import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
 import com.wizphil.instantmessenger.persistence.user.User;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.WebRequest;
 
-import java.util.Collection;
 
 public interface IUserController {
     User createUser(@RequestBody UserDetails userDetails);
@@ -22,7 +28,11 @@ public interface IUserController {
 
     User getUserByUsername(@PathVariable("username") String username);
 
-    Collection<UserInfoDTO> getAllUserInfo();
+    ResponseEntity<byte[]> getAllUserInfo(@RequestHeader(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, WebRequest webRequest);
+
+    RosterDTO getUserInfoChangedSince(@RequestParam("sinceVersion") long sinceVersion, WebRequest webRequest);
+
+    RosterDTO getUserInfoPage(@RequestParam("cursor") String cursor, @RequestParam("limit") Integer limit) throws InvalidEntityException;
 
     UserInfoDTO getUserInfo(@PathVariable("id") String id);
 
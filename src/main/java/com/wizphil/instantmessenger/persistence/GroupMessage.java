@@ -1,17 +1,22 @@
 package com.wizphil.instantmessenger.persistence;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+@AllArgsConstructor
+@NoArgsConstructor
 @Builder
 @Data
 @CompoundIndexes({
         // 'to' is indexed so we can find unread messages (messages received while offline)
-        @CompoundIndex(name = "time_idx", def = "{'groupId': 1, 'time': -1}")
+        @CompoundIndex(name = "time_idx", def = "{'groupId': 1, 'time': -1}"),
+        @CompoundIndex(name = "group_sort_idx", def = "{'groupId': 1, 'sortId': -1}")
 })
 @Document
 public class GroupMessage {
@@ -21,6 +26,10 @@ public class GroupMessage {
     private String groupId;
     private String content;
     private Long time;
+    // see Message.sortId
+    private Long sortId;
+    // per group, starts at 1 and increases by 1 with every message, members' read cursors point at one of these
+    private Long seq;
     // we don't actually delete messages, but we mark them as not enabled to prevent the client from receiving them
     private Boolean deleted;
 }
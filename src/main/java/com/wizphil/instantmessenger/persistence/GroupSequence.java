@@ -0,0 +1,14 @@
+package com.wizphil.instantmessenger.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// the latest GroupMessage.seq of a group, see GroupMessageRepository.findLatestSequences
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class GroupSequence {
+    private String groupId;
+    private Long seq;
+}
@@ -3,19 +3,23 @@ package com.wizphil.instantmessenger.persistence;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @AllArgsConstructor
+@NoArgsConstructor
 @Builder
 @Data
 @CompoundIndexes({
         // 'to' is indexed so we can find unread messages (messages received while offline)
         @CompoundIndex(name = "time_idx", def = "{'to': 1, 'time': -1}"),
         // 'conversationId' is indexed so we can fetch a page of results
-        @CompoundIndex(name = "conversation_idx", def = "{'conversationId': 1, 'time': -1}")
+        @CompoundIndex(name = "conversation_idx", def = "{'conversationId': 1, 'time': -1}"),
+        // history pages use sortId as the cursor
+        @CompoundIndex(name = "conversation_sort_idx", def = "{'conversationId': 1, 'sortId': -1}")
 })
 @Document
 public class Message {
@@ -28,6 +32,8 @@ public class Message {
     private String conversationId;
     private String content;
     private Long time;
+    // unique and in creation order (see MessageIdGenerator), messages from before it existed get one derived from their time
+    private Long sortId;
     // we don't actually delete messages, but we mark them as not enabled to prevent the client from receiving them
     private Boolean deleted;
 }
@@ -1,5 +1,7 @@
 package com.wizphil.instantmessenger.persistence.user;
 
+import com.wizphil.instantmessenger.enums.WireFormat;
+import com.wizphil.instantmessenger.service.SessionOutboundQueue;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -10,6 +12,12 @@ import javax.websocket.Session;
 @Builder
 @Data
 public class UserSession {
+    // set by SessionService when the session is registered
+    String userId;
     Session session;
     UserStatus userStatus;
+    @Builder.Default
+    WireFormat wireFormat = WireFormat.JsonV1;
+    // set by SessionService when the session is registered
+    SessionOutboundQueue outboundQueue;
 }
@@ -1,14 +1,37 @@
 package com.wizphil.instantmessenger.repository;
 
 import com.wizphil.instantmessenger.persistence.GroupMessage;
-import org.springframework.data.domain.Page;
+import com.wizphil.instantmessenger.persistence.GroupSequence;
+import org.bson.types.ObjectId;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 
+import java.util.List;
+import java.util.stream.Stream;
+
 public interface GroupMessageRepository extends MongoRepository<GroupMessage, String> {
-    @Query(value = "{ groupId: ?0, time: { $lte: ?1 }, deleted: false }",
-            sort = "{ time: -1 }",
-            fields = "{_id : 1}")
-    Page<GroupMessage> findConversationBeforeTime(String groupId, long afterTime, Pageable pageable);
+    // served by group_sort_idx, returns whole messages so a page is a single query (no count, see MessageRepository)
+    @Query(value = "{ groupId: ?0, sortId: { $lt: ?1 }, deleted: false }",
+            sort = "{ sortId: -1 }",
+            fields = "{_id : 1, from: 1, groupId: 1, content: 1, time: 1, sortId: 1, seq: 1}")
+    Slice<GroupMessage> findConversationBeforeId(String groupId, long beforeId, Pageable pageable);
+
+    @Query(value = "{ groupId: ?0, sortId: { $gt: ?1 }, deleted: false }",
+            sort = "{ sortId: 1 }",
+            fields = "{_id : 1, from: 1, groupId: 1, content: 1, time: 1, sortId: 1, seq: 1}")
+    Slice<GroupMessage> findConversationAfterId(String groupId, long afterId, Pageable pageable);
+
+    @Query(value = "{ _id: { $gt: ?0 } }",
+            sort = "{ _id: 1 }",
+            fields = "{_id : 1, from: 1, groupId: 1, seq: 1}")
+    Stream<GroupMessage> streamCreatedAfter(ObjectId after);
+
+    // highest seq of every group, run once on startup (see GroupReadCursors)
+    @Aggregation(pipeline = {
+            "{ $group: { _id: '$groupId', seq: { $max: '$seq' } } }",
+            "{ $project: { _id: 0, groupId: '$_id', seq: 1 } }"})
+    List<GroupSequence> findLatestSequences();
 }
@@ -1,12 +1,28 @@
 package com.wizphil.instantmessenger.repository;
 
 import com.wizphil.instantmessenger.persistence.Message;
+import org.bson.types.ObjectId;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 
+import java.util.stream.Stream;
+
 public interface MessageRepository extends MongoRepository<Message, String> {
+    // history is keyset paged on conversation_sort_idx, a Slice reads one extra message to know if there's more instead of counting
+    // the whole conversation, so every page costs the same however far back it is
+    @Query(value = "{ conversationId: ?0, sortId: { $lt: ?1 }, deleted: false }",
+            sort = "{ sortId: -1 }",
+            fields = "{_id : 1, to: 1, from: 1, content: 1, time: 1, sortId: 1}")
+    Slice<Message> findConversationBeforeId(String conversationId, long beforeId, Pageable pageable);
+
+    @Query(value = "{ conversationId: ?0, sortId: { $gt: ?1 }, deleted: false }",
+            sort = "{ sortId: 1 }",
+            fields = "{_id : 1, to: 1, from: 1, content: 1, time: 1, sortId: 1}")
+    Slice<Message> findConversationAfterId(String conversationId, long afterId, Pageable pageable);
+
     @Query(value = "{ conversationId: ?0, time: { $lt: ?1 }, deleted: false }",
             sort = "{ time: -1 }",
             fields = "{_id : 1, to: 1, from: 1, content: 1, time: 1}")
@@ -16,4 +32,10 @@ public interface MessageRepository extends MongoRepository<Message, String> {
             sort = "{ time: -1 }",
             fields = "{_id : 1}")
     Page<Message> findMessagesToUserAfterTime(String conversationId, long afterTime, Pageable pageable);
+
+    // ids are ObjectIds, so this walks the _id index from a point in time, used to catch up after a restart
+    @Query(value = "{ _id: { $gt: ?0 } }",
+            sort = "{ _id: 1 }",
+            fields = "{_id : 1, to: 1, from: 1, time: 1, sortId: 1}")
+    Stream<Message> streamCreatedAfter(ObjectId after);
 }
@@ -0,0 +1,135 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.dto.CommandDTO;
+import com.wizphil.instantmessenger.dto.CommandReplyDTO;
+import com.wizphil.instantmessenger.dto.MessageDTO;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+// Runs commands clients send over their websocket (see WebSocketController.onMessage), the socket equivalent of MessageController/UserController
+// The sender is always the user that owns the socket, commands can't act on behalf of anyone else
+// Replies go back to the session the command came from as a CommandReply message
+@Component
+@Setter
+@Slf4j
+public class CommandService {
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private SessionService sessionService;
+
+    @Autowired
+    private SyncService syncService;
+
+    public void handle(String userId, String sessionId, CommandDTO command) {
+        CommandReplyDTO reply = execute(userId, sessionId, command);
+
+        // successful commands without a request id are fire and forget (typing pings), nobody is waiting for the reply
+        if (reply.isSuccess() && reply.getRequestId() == null) {
+            return;
+        }
+
+        sessionService.sendMessageToSession(sessionId, new MessageWrapperDTO(MessageCategory.CommandReply, reply));
+    }
+
+    public void rejectMalformed(String sessionId, Exception e) {
+        log.warn("Received malformed command on session {}", sessionId, e);
+        sessionService.sendMessageToSession(sessionId, new MessageWrapperDTO(MessageCategory.CommandReply, CommandReplyDTO.builder()
+                .success(false)
+                .status(HttpStatus.BAD_REQUEST.value())
+                .error("Malformed command")
+                .build()));
+    }
+
+    CommandReplyDTO execute(String userId, String sessionId, CommandDTO command) {
+        String requestId = command == null ? null : command.getRequestId();
+        try {
+            String result = dispatch(userId, sessionId, command);
+            return CommandReplyDTO.builder()
+                    .requestId(requestId)
+                    .success(true)
+                    .status(HttpStatus.OK.value())
+                    .result(result)
+                    .build();
+        } catch (ResponseStatusException e) {
+            log.warn("Command failed userId {} sessionId {} command {} reason {}", userId, sessionId, command, e.getReason());
+            return CommandReplyDTO.builder()
+                    .requestId(requestId)
+                    .success(false)
+                    .status(e.getStatus().value())
+                    .error(e.getReason())
+                    .build();
+        } catch (RuntimeException e) {
+            log.error("Command failed userId {} sessionId {} command {}", userId, sessionId, command, e);
+            return CommandReplyDTO.builder()
+                    .requestId(requestId)
+                    .success(false)
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR.value())
+                    .error(HttpStatus.INTERNAL_SERVER_ERROR.getReasonPhrase())
+                    .build();
+        }
+    }
+
+    private String dispatch(String userId, String sessionId, CommandDTO command) {
+        if (command == null || command.getType() == null) {
+            throw new InvalidEntityException();
+        }
+
+        switch (command.getType()) {
+            case SendDirectMessage:
+                return messageService.sendPrivateMessage(MessageDTO.builder()
+                        .from(userId)
+                        .to(command.getUserId())
+                        .content(command.getContent())
+                        .build());
+            case SendGroupMessage:
+                return messageService.sendGroupMessage(MessageDTO.builder()
+                        .from(userId)
+                        .to(command.getGroupId())
+                        .content(command.getContent())
+                        .build()).getId();
+            case Typing:
+                if (command.getGroupId() != null) {
+                    messageService.sendIsTypingToGroup(userId, command.getGroupId());
+                } else {
+                    messageService.sendIsTypingToUser(userId, command.getUserId());
+                }
+                return null;
+            case SetStatus:
+                if (command.getStatus() == null) {
+                    throw new InvalidEntityException();
+                }
+
+                userService.setStatus(userId, sessionId, command.getStatus());
+                return null;
+            case MarkSeen:
+                if (command.getGroupId() != null) {
+                    messageService.markGroupMessagesAsSeen(userId, command.getGroupId(), command.getSeq());
+                    return null;
+                }
+
+                if (command.getUserId() == null) {
+                    throw new InvalidEntityException();
+                }
+
+                messageService.markMessageAsSeen(userId, command.getUserId());
+                return null;
+            case Sync:
+                sessionService.sendMessageToSession(sessionId, new MessageWrapperDTO(MessageCategory.Sync, syncService.sync(userId, command.getCursor())));
+                return null;
+            default:
+                throw new InvalidEntityException();
+        }
+    }
+}
@@ -11,6 +11,7 @@ import com.wizphil.instantmessenger.exceptions.NullIdException;
 import com.wizphil.instantmessenger.exceptions.UserNotInGroupException;
 import com.wizphil.instantmessenger.persistence.Group;
 import com.wizphil.instantmessenger.cache.GroupCache;
+import com.wizphil.instantmessenger.cache.SyncEventLog;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,6 +33,9 @@ public class GroupService {
     @Autowired
     private SessionService sessionService;
 
+    @Autowired
+    private SyncEventLog syncEventLog;
+
     public Group createGroup(Group group) {
         log.debug("Creating group=" + group);
         if (group == null || group.getUserIds() == null || group.getUserIds().size() <= 1) {
@@ -54,6 +58,7 @@ public class GroupService {
 
         groupCache.create(group);
 
+        syncEventLog.append(MessageCategory.NewGroup, group, group.getUserIds());
         sessionService.sendMessageToUsers(group.getUserIds(), new MessageWrapperDTO(MessageCategory.NewGroup, group));
 
         log.debug("Group created! id=" + group.getId());
@@ -72,6 +77,10 @@ public class GroupService {
         return groupCache.getGroupsForUser(userId);
     }
 
+    public Set<String> getGroupIdsForUser(String userId) {
+        return groupCache.getGroupIdsForUser(userId);
+    }
+
     public void addUsers(String groupId, Set<String> userIds) {
         log.debug("Attempting to add userIds {} to group {}", userIds, groupId);
         if (groupId == null || userIds == null || userIds.size() == 0) {
@@ -96,6 +105,7 @@ public class GroupService {
                 .userIds(enabledNotInGroupUserIds)
                 .build();
 
+        syncEventLog.append(MessageCategory.UsersAddedToGroup, groupUsersDTO, group.getUserIds());
         sessionService.sendMessageToUsers(group.getUserIds(), new MessageWrapperDTO(MessageCategory.UsersAddedToGroup, groupUsersDTO));
     }
 
@@ -122,6 +132,9 @@ public class GroupService {
                 .userId(userId)
                 .build();
 
+        // the removed user has to hear about it too
+        syncEventLog.append(MessageCategory.UserRemovedFromGroup, groupUserDTO, Sets.union(group.getUserIds(), Set.of(userId)));
+
         // send a message to the removed user and to the remaining users
         MessageWrapperDTO removedGroupUserMessage = new MessageWrapperDTO(MessageCategory.UserRemovedFromGroup, groupUserDTO);
         sessionService.sendMessageToUser(userId, removedGroupUserMessage);
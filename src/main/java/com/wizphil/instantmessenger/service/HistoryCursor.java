@@ -0,0 +1,36 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+// History cursors are a message's sortId (see MessageIdGenerator), clients get them base64 encoded and shouldn't look inside
+// The version byte lets us change what a cursor holds without breaking cursors clients already have
+public final class HistoryCursor {
+    private static final byte VERSION = 1;
+    private static final int LENGTH = 1 + Long.BYTES;
+
+    private HistoryCursor() {
+    }
+
+    public static String encode(long sortId) {
+        ByteBuffer bytes = ByteBuffer.allocate(LENGTH).put(VERSION).putLong(sortId);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+    }
+
+    public static long decode(String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidEntityException();
+        }
+
+        if (bytes.length != LENGTH || bytes[0] != VERSION) {
+            throw new InvalidEntityException();
+        }
+
+        return ByteBuffer.wrap(bytes, 1, Long.BYTES).getLong();
+    }
+}
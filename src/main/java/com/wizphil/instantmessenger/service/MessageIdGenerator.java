@@ -0,0 +1,82 @@
+package com.wizphil.instantmessenger.service;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Snowflake style message ids: 41 bits of milliseconds since 2020, 10 bits of node id, 12 bits of sequence
+// Ids are unique across nodes (as long as every node has its own node id) and sort in creation order, so they're used as history cursors
+// The clock is logical: if the wall clock goes backwards or a node makes more than 4096 ids in a millisecond we borrow from the next millisecond,
+// so ids never repeat and never go backwards
+@Component
+@Setter
+@Slf4j
+public class MessageIdGenerator {
+    private static final long EPOCH = 1577836800000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    // -1 derives one from the host name and pid, set it explicitly when running more than one node
+    @Value("${message.id.node-id:-1}")
+    private long nodeId;
+
+    // (milliseconds since EPOCH << SEQUENCE_BITS) | sequence of the last id handed out, a sequence overflow carries into the milliseconds
+    private final AtomicLong lastTimeAndSequence = new AtomicLong();
+    private long nodeBits;
+
+    @PostConstruct
+    public void init() {
+        if (nodeId < 0) {
+            nodeId = derivedNodeId();
+            log.info("message.id.node-id not set, using {}", nodeId);
+        }
+
+        if (nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("message.id.node-id must be between 0 and " + MAX_NODE_ID + ", was " + nodeId);
+        }
+
+        nodeBits = nodeId << SEQUENCE_BITS;
+    }
+
+    private static long derivedNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+
+        return (host.hashCode() * 31L + ProcessHandle.current().pid()) & MAX_NODE_ID;
+    }
+
+    public long nextId() {
+        while (true) {
+            long last = lastTimeAndSequence.get();
+            long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            long next = now > last ? now : last + 1;
+            if (lastTimeAndSequence.compareAndSet(last, next)) {
+                return ((next >>> SEQUENCE_BITS) << TIME_SHIFT) | nodeBits | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    // the creation time of an id, in epoch milliseconds
+    public static long timeOf(long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    // every id made at or after time is >= this, so "created before time" is "id < firstIdAt(time)"
+    public static long firstIdAt(long time) {
+        long millis = Math.max(0, time - EPOCH);
+        return millis >= 1L << (Long.SIZE - 1 - TIME_SHIFT) ? Long.MAX_VALUE : millis << TIME_SHIFT;
+    }
+}
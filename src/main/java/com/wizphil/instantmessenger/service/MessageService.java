@@ -1,11 +1,10 @@
 package com.wizphil.instantmessenger.service;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.wizphil.instantmessenger.dto.GroupUserDTO;
 import com.wizphil.instantmessenger.dto.MessageDTO;
+import com.wizphil.instantmessenger.dto.MessageSliceDTO;
 import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.dto.UnreadCountDTO;
+import com.wizphil.instantmessenger.enums.HistoryDirection;
 import com.wizphil.instantmessenger.enums.MessageCategory;
 import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
 import com.wizphil.instantmessenger.exceptions.MessageTooLargeException;
@@ -14,17 +13,21 @@ import com.wizphil.instantmessenger.exceptions.UserNotInGroupException;
 import com.wizphil.instantmessenger.persistence.Group;
 import com.wizphil.instantmessenger.persistence.GroupMessage;
 import com.wizphil.instantmessenger.persistence.Message;
+import com.wizphil.instantmessenger.cache.GroupReadCursors;
 import com.wizphil.instantmessenger.cache.MessageCache;
+import com.wizphil.instantmessenger.cache.SyncEventLog;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Slice;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 @Component
 @Setter
@@ -42,39 +45,29 @@ public class MessageService {
     @Autowired
     private SessionService sessionService;
 
-    // Messages have a compound index using the properties {to, time}
-    // We want to ensure that each {to, time} is unique
-    // If the user is sending several messages at the same time, some could fall on the same millisecond
-    // This will give a time as close the current time as possible without duplicates.
-    // https://stackoverflow.com/questions/9191288/creating-a-unique-timestamp-in-java/9191383#9191383
-    private final LoadingCache<String, AtomicLong> lastMessageTimeCache = CacheBuilder.newBuilder()
-            .expireAfterAccess(1, TimeUnit.MINUTES)
-            .build(new CacheLoader<>() {
-        @Override
-        public AtomicLong load(String id) {
-            return new AtomicLong(System.currentTimeMillis());
-        }
-    });
-
-    public long uniqueCurrentTimeMS(String id) {
-        long now = System.currentTimeMillis();
-        while(true) {
-            long lastTime = lastMessageTimeCache.getUnchecked(id).get();
-            if (lastTime >= now) {
-                now = lastTime + 1;
-            }
+    @Autowired
+    private TypingIndicatorService typingIndicatorService;
 
-            if (lastMessageTimeCache.getUnchecked(id).compareAndSet(lastTime, now)) {
-                return now;
-            }
-        }
-    }
+    @Autowired
+    private GroupReadCursors groupReadCursors;
+
+    @Autowired
+    private MessageIdGenerator messageIdGenerator;
+
+    @Autowired
+    private SyncEventLog syncEventLog;
 
     // System messages will have an all 0 id
     // currently this is only used when a user joins/leaves a group
     private static final String systemId = "system-generated-message";
     // TODO MAX_MESSAGE_SIZE should be a dynamic server config
     private static final int MAX_MESSAGE_SIZE = 2000;
+    // one page of history, the multi-get is how clients fill in messages they only know the id of
+    private static final int MAX_IDS_PER_REQUEST = 250;
+
+    // history page size for clients that don't ask for one, capped by message.history.max-page-size (see MessageCache)
+    @Value("${message.history.default-page-size:50}")
+    private int defaultPageSize;
 
     public Message getMessage(String id) {
         return validateAndGetMessage(id);
@@ -84,25 +77,85 @@ public class MessageService {
         return validateAndGetGroupMessage(id);
     }
 
-    public Page<Message> getPrivateChatConversation(String user1Id, String user2Id, long beforeTime) {
-        // beforeTime <= 0 means get most recent messages
-        // it means the user doesn't have any messages and needs to get the first page
-        if (beforeTime <= 0) {
-            beforeTime = System.currentTimeMillis();
+    public List<Message> getMessages(List<String> ids) {
+        validateIds(ids);
+        return messageCache.getMessages(ids);
+    }
+
+    public List<GroupMessage> getGroupMessages(List<String> ids) {
+        validateIds(ids);
+        return messageCache.getGroupMessages(ids);
+    }
+
+    // one slice of history in either direction from cursor, no cursor starts at the newest (before) or oldest (after) message
+    // limit null means message.history.default-page-size, anything over message.history.max-page-size gets the max
+    public MessageSliceDTO<Message> getPrivateChatHistory(String user1Id, String user2Id, String direction, String cursor, Integer limit) {
+        if (user1Id == null || user2Id == null) {
+            throw new NullIdException();
+        }
+
+        String conversationId = getConversationId(user1Id, user2Id);
+        int pageSize = validatePageSize(limit);
+        Slice<Message> slice = validateDirection(direction) == HistoryDirection.Before
+                ? messageCache.getConversationBefore(conversationId, cursor == null ? Long.MAX_VALUE : HistoryCursor.decode(cursor), pageSize)
+                : messageCache.getConversationAfter(conversationId, cursor == null ? -1 : HistoryCursor.decode(cursor), pageSize);
+        return toSliceDTO(slice, Message::getSortId);
+    }
+
+    public MessageSliceDTO<GroupMessage> getGroupChatHistory(String groupId, String direction, String cursor, Integer limit) {
+        if (groupId == null) {
+            throw new NullIdException();
+        }
+
+        int pageSize = validatePageSize(limit);
+        Slice<GroupMessage> slice = validateDirection(direction) == HistoryDirection.Before
+                ? messageCache.getGroupConversationBefore(groupId, cursor == null ? Long.MAX_VALUE : HistoryCursor.decode(cursor), pageSize)
+                : messageCache.getGroupConversationAfter(groupId, cursor == null ? -1 : HistoryCursor.decode(cursor), pageSize);
+        return toSliceDTO(slice, GroupMessage::getSortId);
+    }
+
+    private int validatePageSize(Integer limit) {
+        if (limit == null) {
+            return defaultPageSize;
+        }
+
+        if (limit < 1) {
+            throw new InvalidEntityException();
         }
 
+        return limit;
+    }
+
+    private static HistoryDirection validateDirection(String direction) {
+        HistoryDirection historyDirection = HistoryDirection.fromParam(direction);
+        if (historyDirection == null) {
+            throw new InvalidEntityException();
+        }
+
+        return historyDirection;
+    }
+
+    // the next cursor is the last message on this page, the next page starts right past it
+    private static <T> MessageSliceDTO<T> toSliceDTO(Slice<T> slice, Function<T, Long> sortIdOf) {
+        List<T> messages = slice.getContent();
+        String nextCursor = slice.hasNext() && !messages.isEmpty() ? HistoryCursor.encode(sortIdOf.apply(messages.get(messages.size() - 1))) : null;
+        return new MessageSliceDTO<>(messages, nextCursor);
+    }
+
+    public Page<Message> getPrivateChatConversation(String user1Id, String user2Id, long beforeTime) {
         String conversationId = getConversationId(user1Id, user2Id);
-        return messageCache.getConversationBeforeTime(conversationId, beforeTime);
+        return messageCache.getConversationBeforeId(conversationId, beforeTimeToSortId(beforeTime));
     }
 
     public Page<GroupMessage> getGroupChatConversation(String groupId, long beforeTime) {
+        return messageCache.getGroupConversationBeforeId(groupId, beforeTimeToSortId(beforeTime));
+    }
+
+    // history is paged by sortId, times from clients are turned into the first id of that millisecond
+    private static long beforeTimeToSortId(long beforeTime) {
         // beforeTime <= 0 means get most recent messages
         // it means the user doesn't have any messages and needs to get the first page
-        if (beforeTime <= 0) {
-            beforeTime = System.currentTimeMillis();
-        }
-
-        return messageCache.getGroupConversationBeforeTime(groupId, beforeTime);
+        return beforeTime <= 0 ? Long.MAX_VALUE : MessageIdGenerator.firstIdAt(beforeTime);
     }
 
     public String sendPrivateMessage(MessageDTO messageDTO) {
@@ -115,7 +168,8 @@ public class MessageService {
         userService.validateUserEnabled(toId);
 
         String conversationId = getConversationId(messageDTO.getFrom(), toId);
-        long time = uniqueCurrentTimeMS(conversationId);
+        long sortId = messageIdGenerator.nextId();
+        long time = MessageIdGenerator.timeOf(sortId);
         messageDTO.setTime(time);
 
         Message message = Message.builder()
@@ -124,11 +178,13 @@ public class MessageService {
                 .conversationId(conversationId)
                 .content(messageDTO.getContent())
                 .time(time)
+                .sortId(sortId)
                 .deleted(false)
                 .build();
 
         message = messageCache.createMessage(message);
 
+        syncEventLog.append(MessageCategory.DirectMessage, message, List.of(toId, fromId));
         sessionService.sendMessageToUser(toId, new MessageWrapperDTO(MessageCategory.DirectMessage, message));
 
         // send to yourself in case there are other sessions open
@@ -144,16 +200,25 @@ public class MessageService {
         // validating toId is done here, because a Message can be for a user or for a group
         Group group = groupService.getExistingGroup(messageDTO.getTo());
 
-        long time = uniqueCurrentTimeMS(group.getId());
-        GroupMessage groupMessage = GroupMessage.builder()
-                .from(messageDTO.getFrom())
-                .groupId(group.getId())
-                .content(messageDTO.getContent())
-                .time(time)
-                .build();
-
-        groupMessage = messageCache.createGroupMessage(groupMessage);
-
+        // the seq and the sortId are taken together so the group's seq order and history order agree
+        // the seq only counts once the message is persisted, a failed write doesn't show up as an unread message
+        GroupMessage groupMessage = groupReadCursors.append(group.getId(), messageIdGenerator::nextId, (seq, sortId) ->
+                messageCache.createGroupMessage(GroupMessage.builder()
+                        .from(messageDTO.getFrom())
+                        .groupId(group.getId())
+                        .content(messageDTO.getContent())
+                        .time(MessageIdGenerator.timeOf(sortId))
+                        .sortId(sortId)
+                        .seq(seq)
+                        .deleted(false)
+                        .build()));
+
+        // if they're creating a message, they must have seen the previous messages
+        groupReadCursors.advance(group.getId(), groupMessage.getFrom(), groupMessage.getSeq());
+
+        syncEventLog.append(MessageCategory.GroupMessage, groupMessage, group.getUserIds());
+
+        // large groups are delivered from the fan-out lanes, we return as soon as the message is persisted
         sessionService.sendMessageToUsers(group.getUserIds(), new MessageWrapperDTO(MessageCategory.GroupMessage, groupMessage));
 
         return groupMessage;
@@ -166,7 +231,7 @@ public class MessageService {
 
         // no need to validate if user is online or if they exist
         // if they have no sessions, this will do nothing
-        sessionService.sendMessageToUser(toUserId, new MessageWrapperDTO(MessageCategory.UserTypingPing, fromUserId));
+        typingIndicatorService.userTyping(fromUserId, toUserId);
     }
 
     public void sendIsTypingToGroup(String userId, String groupId) {
@@ -175,27 +240,54 @@ public class MessageService {
         }
 
         Group group = groupService.getExistingGroup(groupId);
-        Set<String> userIds = group.getUserIds();
-
-        if (!userIds.contains(userId)) {
+        if (!group.getUserIds().contains(userId)) {
             throw new UserNotInGroupException(groupId, userId);
         }
 
-        GroupUserDTO groupUserDTO = GroupUserDTO.builder()
-                .userId(userId)
-                .groupId(groupId)
-                .build();
-
-        // don't send isTyping to ourselves
-        userIds.remove(userId);
-
-        sessionService.sendMessageToUsers(userIds, new MessageWrapperDTO(MessageCategory.GroupTypingPing, groupUserDTO));
+        typingIndicatorService.groupTyping(userId, group);
     }
 
     public Map<String, Long> getUnreadMessageCounts(String userId) {
         return messageCache.getUnreadMessageCounts(userId);
     }
 
+    public Map<String, UnreadCountDTO> getUnreadMessageSummary(String userId) {
+        if (userId == null) {
+            throw new NullIdException();
+        }
+
+        return messageCache.getUnreadMessageSummary(userId);
+    }
+
+    // unread message count of every group the user is in, groups with nothing unread are left out
+    public Map<String, Long> getGroupUnreadMessageCounts(String userId) {
+        if (userId == null) {
+            throw new NullIdException();
+        }
+
+        Map<String, Long> unreadMessageCounts = new HashMap<>();
+        for (String groupId : groupService.getGroupIdsForUser(userId)) {
+            long unread = groupReadCursors.getUnread(groupId, userId);
+            if (unread > 0) {
+                unreadMessageCounts.put(groupId, unread);
+            }
+        }
+
+        return unreadMessageCounts;
+    }
+
+    // seq is the last group message the user has seen, null means everything in the group
+    public void markGroupMessagesAsSeen(String userId, String groupId, Long seq) {
+        if (userId == null || groupId == null) {
+            throw new NullIdException();
+        }
+
+        long readSeq = seq == null ? groupReadCursors.getSeq(groupId) : seq;
+        if (!groupReadCursors.advance(groupId, userId, readSeq)) {
+            throw new UserNotInGroupException(groupId, userId);
+        }
+    }
+
     public void markMessageAsSeen(String userId, String fromId) {
         messageCache.markMessageAsSeen(userId, fromId);
     }
@@ -220,6 +312,16 @@ public class MessageService {
         return messageCache.getGroupMessage(id);
     }
 
+    private void validateIds(List<String> ids) {
+        if (ids == null || ids.isEmpty() || ids.contains(null)) {
+            throw new NullIdException();
+        }
+
+        if (ids.size() > MAX_IDS_PER_REQUEST) {
+            throw new InvalidEntityException();
+        }
+    }
+
     private void validateMessage(MessageDTO messageDTO) {
         if (messageDTO == null  || messageDTO.getFrom() == null || messageDTO.getTo() == null || messageDTO.getContent() == null
                 || messageDTO.getContent().isBlank() || messageDTO.getTo().equals(messageDTO.getFrom()) || messageDTO.getTo().equals(systemId)) {
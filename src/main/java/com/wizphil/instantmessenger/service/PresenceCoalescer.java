@@ -0,0 +1,94 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.dto.UserStatusDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Status changes are collected for a short window and sent to everyone as a single PresenceBatch message
+// Only the latest status per user is kept, so when N users come online at once we send N/window messages instead of N*N
+// Sessions get entries for their own user too, clients should ignore their own status
+// Sessions that registered presence interests only get the entries for users they watch (see SessionService.setPresenceInterests)
+@Component
+@Setter
+@Slf4j
+public class PresenceCoalescer {
+    @Autowired
+    private SessionService sessionService;
+
+    // 0 disables coalescing, every status change is sent to its watchers immediately as UpdateUserStatus
+    @Value("${presence.coalesce.window-ms:150}")
+    private long windowMs;
+
+    private final Map<String, UserStatusDTO> pendingStatuses = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    public void init() {
+        if (windowMs <= 0) {
+            log.info("PresenceCoalescer disabled, status changes are sent immediately");
+            return;
+        }
+
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+    }
+
+    public void publish(UserStatusDTO userStatusDTO) {
+        if (flushExecutor == null) {
+            sessionService.sendMessageToWatchers(userStatusDTO.getId(), new MessageWrapperDTO(MessageCategory.UpdateUserStatus, userStatusDTO));
+            return;
+        }
+
+        pendingStatuses.put(userStatusDTO.getId(), userStatusDTO);
+    }
+
+    void flush() {
+        if (pendingStatuses.isEmpty()) {
+            return;
+        }
+
+        // remove entries one at a time, so a status published while we flush lands in either this batch or the next one, never neither
+        List<UserStatusDTO> batch = new ArrayList<>(pendingStatuses.size());
+        for (String userId : pendingStatuses.keySet()) {
+            UserStatusDTO userStatusDTO = pendingStatuses.remove(userId);
+            if (userStatusDTO != null) {
+                batch.add(userStatusDTO);
+            }
+        }
+
+        try {
+            log.debug("PresenceCoalescer flushing {} status changes", batch.size());
+            sessionService.sendBatchToWatchers(MessageCategory.PresenceBatch, batch, UserStatusDTO::getId);
+        } catch (RuntimeException e) {
+            // an exception would cancel the scheduled flush, so we never let one escape
+            log.error("PresenceCoalescer failed to flush {} status changes", batch.size(), e);
+        }
+    }
+}
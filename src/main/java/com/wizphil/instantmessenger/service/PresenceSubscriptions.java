@@ -0,0 +1,56 @@
+package com.wizphil.instantmessenger.service;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Reverse index from a watched userId to the sessions that care about that user's presence (roster favourites, open chat windows, group members)
+// Sessions that never registered interests aren't in here at all, they keep receiving every presence update like before
+// Updates are rare and synchronized, lookups happen on every status change and don't lock
+class PresenceSubscriptions {
+    private final Map<String, Set<String>> watchedUserIdToSessionIds = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> sessionIdToWatchedUserIds = new ConcurrentHashMap<>();
+
+    synchronized void setInterests(String sessionId, Set<String> watchedUserIds) {
+        removeSession(sessionId);
+
+        Set<String> interests = ConcurrentHashMap.newKeySet();
+        interests.addAll(watchedUserIds);
+        sessionIdToWatchedUserIds.put(sessionId, interests);
+
+        for (String watchedUserId : interests) {
+            watchedUserIdToSessionIds.computeIfAbsent(watchedUserId, id -> ConcurrentHashMap.newKeySet()).add(sessionId);
+        }
+    }
+
+    synchronized void removeSession(String sessionId) {
+        Set<String> watchedUserIds = sessionIdToWatchedUserIds.remove(sessionId);
+        if (watchedUserIds == null) {
+            return;
+        }
+
+        for (String watchedUserId : watchedUserIds) {
+            Set<String> sessionIds = watchedUserIdToSessionIds.get(watchedUserId);
+            if (sessionIds != null) {
+                sessionIds.remove(sessionId);
+                if (sessionIds.isEmpty()) {
+                    watchedUserIdToSessionIds.remove(watchedUserId);
+                }
+            }
+        }
+    }
+
+    boolean hasInterests(String sessionId) {
+        return sessionIdToWatchedUserIds.containsKey(sessionId);
+    }
+
+    Set<String> getWatchers(String watchedUserId) {
+        return watchedUserIdToSessionIds.getOrDefault(watchedUserId, Collections.emptySet());
+    }
+
+    void clear() {
+        watchedUserIdToSessionIds.clear();
+        sessionIdToWatchedUserIds.clear();
+    }
+}
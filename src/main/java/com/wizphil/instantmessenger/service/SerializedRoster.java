@@ -0,0 +1,94 @@
+package com.wizphil.instantmessenger.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+// The whole roster serialized once as json and gzip, written as is to every login that asks for it (see UserService.getSerializedRoster)
+// Never changed after it's built, a roster change builds a new one
+public final class SerializedRoster {
+    private final long version;
+    private final long builtAt;
+    private final byte[] json;
+    private final byte[] gzip;
+
+    private SerializedRoster(long version, byte[] json, byte[] gzip) {
+        this.version = version;
+        this.builtAt = System.currentTimeMillis();
+        this.json = json;
+        this.gzip = gzip;
+    }
+
+    static SerializedRoster of(long version, byte[] json) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(json);
+        } catch (IOException e) {
+            // we're writing to memory, this can't happen
+            throw new UncheckedIOException(e);
+        }
+
+        return new SerializedRoster(version, json, compressed.toByteArray());
+    }
+
+    // the UserRoster version the bytes were built from, used as the etag
+    public long getVersion() {
+        return version;
+    }
+
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+    // callers must not modify these
+    public byte[] getJson() {
+        return json;
+    }
+
+    public byte[] getGzip() {
+        return gzip;
+    }
+
+    // true if an Accept-Encoding header allows gzip: gzip (or x-gzip) with a q-value above 0, or failing that * above 0
+    // "gzip;q=0" is a refusal, a q-value we can't parse counts as one too
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        Double gzipQuality = null;
+        Double anyQuality = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.length() > 2 && parameter.substring(0, 2).equalsIgnoreCase("q=")) {
+                    quality = parseQuality(parameter.substring(2));
+                }
+            }
+
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzipQuality = gzipQuality == null ? quality : Math.max(gzipQuality, quality);
+            } else if (name.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+
+        if (gzipQuality != null) {
+            return gzipQuality > 0;
+        }
+
+        return anyQuality != null && anyQuality > 0;
+    }
+
+    private static double parseQuality(String quality) {
+        try {
+            return Double.parseDouble(quality.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
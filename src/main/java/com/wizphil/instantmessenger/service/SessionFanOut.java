@@ -0,0 +1,134 @@
+package com.wizphil.instantmessenger.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Large deliveries (big groups) are split across a fixed set of single threaded lanes so the caller doesn't wait for every recipient
+// A recipient always maps to the same lane, so everything sent to one user is queued in the order it was sent
+// Small deliveries stay on the caller's thread, unless one of their recipients' lanes still has work queued, in which case
+// going inline could overtake an earlier message to that recipient
+@Slf4j
+class SessionFanOut {
+    private final ExecutorService[] lanes;
+    // tasks submitted to each lane that haven't finished yet
+    private final AtomicInteger[] pending;
+    private final int threshold;
+    private final Timer inlineTimer;
+    private final Timer parallelTimer;
+
+    SessionFanOut(int laneCount, int threshold, MeterRegistry meterRegistry) {
+        this.threshold = threshold;
+        lanes = new ExecutorService[laneCount];
+        pending = new AtomicInteger[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "session-fanout-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            pending[i] = new AtomicInteger();
+        }
+
+        // time from the send call until the last recipient's message was queued onto its session
+        inlineTimer = Timer.builder("websocket.fanout.latency").tag("mode", "inline").register(meterRegistry);
+        parallelTimer = Timer.builder("websocket.fanout.latency").tag("mode", "parallel").register(meterRegistry);
+    }
+
+    void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    void deliver(Collection<String> userIds, Consumer<String> send) {
+        long start = System.nanoTime();
+        if (userIds.size() <= threshold && lanesIdle(userIds)) {
+            for (String userId : userIds) {
+                send.accept(userId);
+            }
+
+            inlineTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        List<List<String>> partitions = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            partitions.add(null);
+        }
+
+        int partitionCount = 0;
+        for (String userId : userIds) {
+            int lane = lane(userId);
+            if (partitions.get(lane) == null) {
+                partitions.set(lane, new ArrayList<>());
+                partitionCount++;
+            }
+
+            partitions.get(lane).add(userId);
+        }
+
+        AtomicInteger remaining = new AtomicInteger(partitionCount);
+        for (int i = 0; i < lanes.length; i++) {
+            List<String> partition = partitions.get(i);
+            if (partition != null) {
+                submit(i, partition, send, remaining, start);
+            }
+        }
+    }
+
+    private void submit(int lane, List<String> userIds, Consumer<String> send, AtomicInteger remaining, long start) {
+        pending[lane].incrementAndGet();
+        try {
+            lanes[lane].execute(() -> {
+                try {
+                    for (String userId : userIds) {
+                        try {
+                            send.accept(userId);
+                        } catch (RuntimeException e) {
+                            log.error("Fan out failed to send to user {}", userId, e);
+                        }
+                    }
+                } finally {
+                    finished(lane, remaining, start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // only happens while shutting down
+            log.warn("Fan out lane {} rejected delivery to {} users", lane, userIds.size());
+            finished(lane, remaining, start);
+        }
+    }
+
+    private void finished(int lane, AtomicInteger remaining, long start) {
+        pending[lane].decrementAndGet();
+        if (remaining.decrementAndGet() == 0) {
+            parallelTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private boolean lanesIdle(Collection<String> userIds) {
+        for (String userId : userIds) {
+            if (pending[lane(userId)].get() > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int lane(String userId) {
+        return (userId.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+}
@@ -0,0 +1,212 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.config.EncodedMessage;
+import com.wizphil.instantmessenger.enums.WireFormat;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.websocket.EncodeException;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Every socket session gets its own outbound queue so that a slow client can never block the thread sending to it
+// Messages are already encoded and are written one at a time through the async remote, the next write starts when the previous one completes
+// If a session sits above the high watermark for too long (or fills the queue completely) we evict it
+// The deadline is checked on every enqueue and write completion, and by SessionService's sweep for sessions that get neither
+@Slf4j
+public class SessionOutboundQueue {
+    private final Session session;
+    private final WireFormat wireFormat;
+    private final int maxDepth;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final long slowConsumerTimeoutMs;
+    private final Consumer<SessionOutboundQueue> onEvict;
+
+    private final Queue<EncodedMessage> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    // only one async write may be in flight per session
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private final AtomicBoolean evicted = new AtomicBoolean();
+
+    // 0 means we are currently under the high watermark
+    private volatile long overHighWatermarkSince = 0;
+
+    public SessionOutboundQueue(Session session, WireFormat wireFormat, int maxDepth, int highWatermark, int lowWatermark, long slowConsumerTimeoutMs,
+                                Consumer<SessionOutboundQueue> onEvict) {
+        this.session = session;
+        this.wireFormat = wireFormat;
+        this.maxDepth = maxDepth;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.slowConsumerTimeoutMs = slowConsumerTimeoutMs;
+        this.onEvict = onEvict;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public boolean isEvicted() {
+        return evicted.get();
+    }
+
+    // returns false if the message was dropped, either because the session was evicted or because this call evicted it
+    public boolean enqueue(EncodedMessage message) {
+        if (evicted.get()) {
+            return false;
+        }
+
+        int newDepth = depth.incrementAndGet();
+        if (newDepth > maxDepth) {
+            depth.decrementAndGet();
+            log.warn("Outbound queue full for session {}, depth {}, evicting", session.getId(), newDepth);
+            evict();
+            return false;
+        }
+
+        queue.offer(message);
+
+        if (newDepth >= highWatermark) {
+            if (overHighWatermarkSince == 0) {
+                overHighWatermarkSince = System.currentTimeMillis();
+            } else if (evictIfSlow()) {
+                return false;
+            }
+        }
+
+        drain();
+        return true;
+    }
+
+    // returns true if the session has been above the high watermark for longer than the timeout and was evicted now
+    public boolean evictIfSlow() {
+        long since = overHighWatermarkSince;
+        if (since == 0 || evicted.get()) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - since <= slowConsumerTimeoutMs) {
+            return false;
+        }
+
+        log.warn("Session {} has been above the high watermark for {}ms, depth {}, evicting", session.getId(), now - since, depth.get());
+        evict();
+        return true;
+    }
+
+    private void evict() {
+        if (!evicted.compareAndSet(false, true)) {
+            return;
+        }
+
+        // a write may still be in flight, it takes itself off the depth when it completes
+        int cleared = 0;
+        while (queue.poll() != null) {
+            cleared++;
+        }
+
+        depth.addAndGet(-cleared);
+        onEvict.accept(this);
+    }
+
+    private void drain() {
+        while (!evicted.get() && sending.compareAndSet(false, true)) {
+            EncodedMessage message = queue.poll();
+            if (message == null) {
+                sending.set(false);
+                // someone may have enqueued after our poll but before we released the flag
+                if (queue.isEmpty()) {
+                    return;
+                }
+
+                continue;
+            }
+
+            // if the write doesn't complete on this thread, the completion handler picks up draining where we left off
+            if (!write(message)) {
+                return;
+            }
+        }
+    }
+
+    // returns true when the write completed before the send call returned
+    private boolean write(EncodedMessage message) {
+        WriteCompletion completion = new WriteCompletion(message);
+        try {
+            Object frame = message.getFrame(wireFormat);
+            if (frame instanceof String) {
+                session.getAsyncRemote().sendText((String) frame, completion);
+            } else if (frame instanceof byte[]) {
+                session.getAsyncRemote().sendBinary(EncodedMessage.wrap(frame), completion);
+            } else {
+                completion.onResult(encodeFailure(message));
+            }
+        } catch (RuntimeException e) {
+            completion.onResult(new SendResult(e));
+        }
+
+        return completion.returnedFromSend();
+    }
+
+    private SendResult encodeFailure(EncodedMessage message) {
+        return new SendResult(new EncodeException(message, "Failed to encode message as " + wireFormat));
+    }
+
+    private void completed(EncodedMessage message, SendResult result) {
+        if (!result.isOK()) {
+            log.error("Failed to sendMessage to session: {} message: {}", session.getId(), message, result.getException());
+        }
+
+        int newDepth = depth.decrementAndGet();
+        if (newDepth <= lowWatermark) {
+            overHighWatermarkSince = 0;
+        }
+
+        sending.set(false);
+        // a client that still takes a write now and then, but never drains below the low watermark
+        evictIfSlow();
+    }
+
+    private class WriteCompletion implements SendHandler {
+        private static final int IN_FLIGHT = 0;
+        private static final int COMPLETED_INLINE = 1;
+        private static final int SEND_RETURNED = 2;
+
+        private final EncodedMessage message;
+        private final AtomicInteger state = new AtomicInteger(IN_FLIGHT);
+
+        private WriteCompletion(EncodedMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            completed(message, result);
+
+            // if the send call already returned, the draining thread has moved on and we have to keep draining ourselves
+            // otherwise we'd recurse once per queued message when the container completes writes inline
+            if (!state.compareAndSet(IN_FLIGHT, COMPLETED_INLINE)) {
+                drain();
+            }
+        }
+
+        private boolean returnedFromSend() {
+            return !state.compareAndSet(IN_FLIGHT, SEND_RETURNED);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.persistence.user.UserSession;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every connected session, indexed by sessionId and by userId
+// Each user maps to an array of their sessions that is never modified, adding or removing a session swaps in a new array
+// Sends (the hot path) only ever read, so they never lock and never see a half updated user
+// Lookups return null or an empty array when there's nothing there, they never throw
+public class SessionRegistry {
+    private static final UserSession[] NO_SESSIONS = new UserSession[0];
+
+    private final Map<String, UserSession[]> userIdToSessions = new ConcurrentHashMap<>();
+    private final Map<String, UserSession> sessionIdToUserSession = new ConcurrentHashMap<>();
+
+    // returns false if a session with the same id is already registered
+    public boolean add(UserSession userSession) {
+        if (sessionIdToUserSession.putIfAbsent(userSession.getSession().getId(), userSession) != null) {
+            return false;
+        }
+
+        userIdToSessions.compute(userSession.getUserId(), (userId, sessions) -> {
+            if (sessions == null) {
+                return new UserSession[] { userSession };
+            }
+
+            UserSession[] newSessions = Arrays.copyOf(sessions, sessions.length + 1);
+            newSessions[sessions.length] = userSession;
+            return newSessions;
+        });
+
+        return true;
+    }
+
+    // returns the removed session, or null if it wasn't registered
+    public UserSession remove(String sessionId) {
+        UserSession userSession = sessionIdToUserSession.remove(sessionId);
+        if (userSession == null) {
+            return null;
+        }
+
+        userIdToSessions.computeIfPresent(userSession.getUserId(), (userId, sessions) -> {
+            UserSession[] newSessions = new UserSession[sessions.length];
+            int count = 0;
+            for (UserSession session : sessions) {
+                if (session != userSession) {
+                    newSessions[count++] = session;
+                }
+            }
+
+            return count == 0 ? null : Arrays.copyOf(newSessions, count);
+        });
+
+        return userSession;
+    }
+
+    public UserSession get(String sessionId) {
+        return sessionIdToUserSession.get(sessionId);
+    }
+
+    // the returned array must not be modified
+    public UserSession[] getSessions(String userId) {
+        UserSession[] sessions = userIdToSessions.get(userId);
+        return sessions == null ? NO_SESSIONS : sessions;
+    }
+
+    public Collection<UserSession> getAllSessions() {
+        return sessionIdToUserSession.values();
+    }
+
+    public void clear() {
+        userIdToSessions.clear();
+        sessionIdToUserSession.clear();
+    }
+}
@@ -1,129 +1,182 @@
 package com.wizphil.instantmessenger.service;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
+import com.wizphil.instantmessenger.config.EncodedMessage;
 import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
 import com.wizphil.instantmessenger.enums.MessageCategory;
 import com.wizphil.instantmessenger.enums.Status;
 import com.wizphil.instantmessenger.exceptions.DuplicateSessionException;
 import com.wizphil.instantmessenger.persistence.user.UserSession;
 import com.wizphil.instantmessenger.persistence.user.UserStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import javax.websocket.EncodeException;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.websocket.CloseReason;
 import javax.websocket.Session;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 @Component
 @Setter
 @Slf4j
 public class SessionService {
 
-    // This allows us to handle multiple user sessions (aka one user is signed in to multiple locations)
-    // We can send a message to all sessions and all sessions for a user, and can keep track of the user status for each session
-    private final SetMultimap<String, String> userIdToSessionIds = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    @Autowired
+    private MeterRegistry meterRegistry;
 
-    // This cache is just for getting the userId so we can remove the session from `userIdToSessions` when the session closes
-    private final LoadingCache<String, String> sessionIdToUserId = CacheBuilder.newBuilder().build(new CacheLoader<>() {
-        @Override
-        public String load(String sessionId) {
-            return null;
-        }
-    });
+    // Outbound queue limits, see SessionOutboundQueue
+    @Value("${websocket.outbound.max-depth:5000}")
+    private int outboundMaxDepth;
 
-    // The actual user session that has the user's status and socket session where we can send messages
-    private final LoadingCache<String, UserSession> sessionIdToUserSession = CacheBuilder.newBuilder().build(new CacheLoader<>() {
-        @Override
-        public UserSession load(String sessionId) {
-            return null;
-        }
+    @Value("${websocket.outbound.high-watermark:1000}")
+    private int outboundHighWatermark;
+
+    @Value("${websocket.outbound.low-watermark:100}")
+    private int outboundLowWatermark;
+
+    @Value("${websocket.outbound.slow-consumer-timeout-ms:10000}")
+    private long slowConsumerTimeoutMs;
+
+    // A stalled client gets no write completions, and may get no new messages either, so the slow consumer deadline is also swept
+    @Value("${websocket.outbound.slow-consumer-sweep-ms:1000}")
+    private long slowConsumerSweepMs;
+
+    // Closing a socket can block on a stalled client, so evictions are closed off the sending thread
+    private final ExecutorService evictionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-eviction");
+        thread.setDaemon(true);
+        return thread;
     });
 
-    public void clearAllCache() {
+    private ScheduledExecutorService slowConsumerSweeper;
 
-        Collection<Collection<String>> allSessions = userIdToSessionIds.asMap().values();
-        for (Collection<String> sessionIdCollection : allSessions) {
-            for (String sessionId : sessionIdCollection) {
-                closeSession(sessionId, true);
-            }
+    private Counter evictionCounter;
+
+    // Deliveries to more users than this are handed to the fan-out lanes instead of running on the caller's thread, see SessionFanOut
+    @Value("${websocket.fanout.threshold:64}")
+    private int fanOutThreshold;
+
+    // 0 uses one lane per available processor
+    @Value("${websocket.fanout.lanes:0}")
+    private int fanOutLanes;
+
+    private SessionFanOut sessionFanOut;
+
+    // Which sessions want presence updates (status and user details) for which users
+    private final PresenceSubscriptions presenceSubscriptions = new PresenceSubscriptions();
+
+    // sessionId -> the sessions that never registered interests (or went back to the global feed), they get every presence update
+    // kept apart so a presence update only walks these and the watchers, not every connected session
+    private final Map<String, UserSession> unsubscribedSessions = new ConcurrentHashMap<>();
+
+    // This allows us to handle multiple user sessions (aka one user is signed in to multiple locations)
+    // We can send a message to all sessions and all sessions for a user, and can keep track of the user status for each session
+    private final SessionRegistry sessionRegistry = new SessionRegistry();
+
+    @PostConstruct
+    public void init() {
+        evictionCounter = meterRegistry.counter("websocket.outbound.evictions");
+        Gauge.builder("websocket.outbound.depth", this, SessionService::getTotalOutboundQueueDepth)
+                .description("Messages waiting to be written across all sessions")
+                .register(meterRegistry);
+
+        int lanes = fanOutLanes > 0 ? fanOutLanes : Runtime.getRuntime().availableProcessors();
+        sessionFanOut = new SessionFanOut(lanes, fanOutThreshold, meterRegistry);
+
+        slowConsumerSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-slow-consumer-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        slowConsumerSweeper.scheduleWithFixedDelay(this::evictSlowConsumers, slowConsumerSweepMs, slowConsumerSweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        slowConsumerSweeper.shutdownNow();
+        evictionExecutor.shutdownNow();
+        sessionFanOut.shutdown();
+    }
+
+    public void clearAllCache() {
+        for (UserSession userSession : sessionRegistry.getAllSessions()) {
+            closeSession(userSession.getSession().getId(), true);
         }
 
-        userIdToSessionIds.clear();
-        sessionIdToUserId.invalidateAll();
-        sessionIdToUserSession.invalidateAll();
+        sessionRegistry.clear();
+        presenceSubscriptions.clear();
+        unsubscribedSessions.clear();
     }
 
     public void addSession(String userId, UserSession userSession) {
         String sessionId = userSession.getSession().getId();
-        try {
-            sessionIdToUserId.getUnchecked(sessionId);
+        userSession.setUserId(userId);
+        userSession.setOutboundQueue(new SessionOutboundQueue(userSession.getSession(), userSession.getWireFormat(),
+                outboundMaxDepth, outboundHighWatermark, outboundLowWatermark, slowConsumerTimeoutMs, this::evict));
+
+        if (!sessionRegistry.add(userSession)) {
             log.warn("addSession: duplicate session for for user {}; session={}", userId, userSession);
             throw new DuplicateSessionException(sessionId);
-        } catch (CacheLoader.InvalidCacheLoadException ignored) {
         }
 
-        sessionIdToUserId.put(userSession.getSession().getId(), userId);
-        sessionIdToUserSession.put(sessionId, userSession);
-        userIdToSessionIds.put(userId, sessionId);
+        unsubscribedSessions.put(sessionId, userSession);
+        if (sessionRegistry.get(sessionId) == null) {
+            unsubscribedSessions.remove(sessionId);
+        }
 
-        sendMessage(userSession.getSession(), new MessageWrapperDTO(MessageCategory.EstablisedSession, sessionId));
+        sendMessage(userSession, EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.EstablisedSession, sessionId)));
     }
 
     public void closeUserSessions(String userId) {
-        Set<String> sessionIds = userIdToSessionIds.get(userId);
-        if (sessionIds.size() == 0) {
+        UserSession[] userSessions = sessionRegistry.getSessions(userId);
+        if (userSessions.length == 0) {
             return;
         }
 
-        log.info("closing all sessions for user {} sessions {}", userId, sessionIds);
-        for (String sessionId : sessionIds) {
-            closeSession(sessionId, true);
+        log.info("closing all sessions for user {} sessions {}", userId, userSessions.length);
+        for (UserSession userSession : userSessions) {
+            closeSession(userSession.getSession().getId(), true);
         }
-
-        // closeSession should have already taken care of this for us... not sure we need this
-        userIdToSessionIds.removeAll(userId);
     }
 
     public String closeSession(String sessionId, boolean manuallyClosed) {
-        String userId = null;
-        UserSession userSession;
-
-        try {
-            userId = sessionIdToUserId.getUnchecked(sessionId);
-            userIdToSessionIds.remove(userId, sessionId);
-        } catch (CacheLoader.InvalidCacheLoadException ignored) {
-        } finally {
-            sessionIdToUserId.invalidate(sessionId);
+        UserSession userSession = sessionRegistry.remove(sessionId);
+        presenceSubscriptions.removeSession(sessionId);
+        unsubscribedSessions.remove(sessionId);
+        if (userSession == null) {
+            return null;
         }
 
         if (manuallyClosed) {
-            try {
-                userSession = sessionIdToUserSession.getUnchecked(sessionId);
-
-                // TODO send a reason for closing the userSession, so the client knows why userSession ended
-                Session session = userSession.getSession();
-                sendMessage(session, new MessageWrapperDTO(MessageCategory.CloseSession, ""));
-            } catch (CacheLoader.InvalidCacheLoadException ignored) {
-            }
+            // TODO send a reason for closing the userSession, so the client knows why userSession ended
+            sendMessage(userSession, EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.CloseSession, "")));
         }
 
-        sessionIdToUserSession.invalidate(sessionId);
-        return userId;
+        return userSession.getUserId();
     }
 
     public boolean updateSessionStatus(String sessionId, UserStatus userStatus) {
-        UserSession userSession;
-        try {
-            userSession = sessionIdToUserSession.getUnchecked(sessionId);
-        } catch (CacheLoader.InvalidCacheLoadException e) {
+        UserSession userSession = sessionRegistry.get(sessionId);
+        if (userSession == null) {
             return false;
         }
 
@@ -137,23 +190,14 @@ public class SessionService {
             return null;
         }
 
-        Set<String> sessionIds = userIdToSessionIds.get(userId);
-        if (sessionIds.size() == 0) {
+        UserSession[] userSessions = sessionRegistry.getSessions(userId);
+        if (userSessions.length == 0) {
             return null;
         }
 
         UserStatus userStatus = null;
         long mostRecentStatusTime = Long.MIN_VALUE;
-        for (String sessionId : sessionIds) {
-            UserSession userSession;
-            try {
-                userSession = sessionIdToUserSession.getUnchecked(sessionId);
-            } catch (CacheLoader.InvalidCacheLoadException e) {
-                log.error("getMostRecentUserStatus userIdToSessionIds contained a sessionId that wasn't found in sessionIdToUserSession userId {} sessionId {}", userId, sessionId);
-                userIdToSessionIds.remove(userId, sessionId);
-                continue;
-            }
-
+        for (UserSession userSession : userSessions) {
             // We should only return ComputerLocked if it is the only status type
             // ComputerLocked is automatically set when the user's computer is locked
             // When there is a session with any other status, it means that session is an active user session
@@ -167,85 +211,208 @@ public class SessionService {
 
         // This should never happen, offline users should never be in the session cache
         if (userStatus == null || userStatus.getStatus() == Status.Offline) {
-            for (String sessionId : sessionIds) {
-                sessionIdToUserSession.invalidate(sessionId);
+            for (UserSession userSession : userSessions) {
+                sessionRegistry.remove(userSession.getSession().getId());
+                presenceSubscriptions.removeSession(userSession.getSession().getId());
+                unsubscribedSessions.remove(userSession.getSession().getId());
             }
 
-            userIdToSessionIds.removeAll(userId);
             return null;
         }
 
         return userStatus;
     }
 
+    // Every broadcast is serialized exactly once, the same EncodedMessage is queued for every recipient session
+    // Large recipient sets are queued from the fan-out lanes, so this can return before every recipient has the message
     public void sendMessageToUsers(Set<String> userIds, MessageWrapperDTO messageWrapperDTO) {
-        for (String userId: userIds) {
-            sendMessageToUser(userId, messageWrapperDTO);
-        }
+        EncodedMessage encodedMessage = EncodedMessage.encode(messageWrapperDTO);
+        // copy, callers pass in the cached group's userIds which can change while a lane is still sending
+        sessionFanOut.deliver(new ArrayList<>(userIds), userId -> sendMessageToUser(userId, encodedMessage));
     }
 
+    // Goes through the fan-out as well so a direct message can't overtake a group message still queued for this user
     public void sendMessageToUser(String userId, MessageWrapperDTO messageWrapperDTO) {
-        Set<String> sessionIds = userIdToSessionIds.get(userId);
-        for (String sessionId : sessionIds) {
-            UserSession userSession;
-            try {
-                userSession = sessionIdToUserSession.getUnchecked(sessionId);
-                sendMessage(userSession.getSession(), messageWrapperDTO);
-            } catch (CacheLoader.InvalidCacheLoadException e) {
-                log.error("getMostRecentUserStatus userIdToSessionIds contained a sessionId that wasn't found in sessionIdToUserSession userId {} sessionId {}", userId, sessionId);
-                userIdToSessionIds.remove(userId, sessionId);
-            }
+        EncodedMessage encodedMessage = EncodedMessage.encode(messageWrapperDTO);
+        sessionFanOut.deliver(Collections.singletonList(userId), id -> sendMessageToUser(id, encodedMessage));
+    }
+
+    private void sendMessageToUser(String userId, EncodedMessage encodedMessage) {
+        for (UserSession userSession : sessionRegistry.getSessions(userId)) {
+            sendMessage(userSession, encodedMessage);
         }
     }
 
     public void sendMessageToAll(MessageWrapperDTO messageWrapperDTO) {
-        Collection<Collection<String>> allSessions = userIdToSessionIds.asMap().values();
-        for (Collection<String> sessionIdCollection : allSessions) {
-            for (String sessionId : sessionIdCollection) {
-                UserSession userSession;
-                try {
-                    userSession = sessionIdToUserSession.getUnchecked(sessionId);
-                    sendMessage(userSession.getSession(), messageWrapperDTO);
-                } catch (CacheLoader.InvalidCacheLoadException e) {
-                    log.error("sendMessageToAll found cached sessionId without an associated userSession. sessionId: {}", sessionId);
-                }
-            }
+        EncodedMessage encodedMessage = EncodedMessage.encode(messageWrapperDTO);
+        for (UserSession userSession : sessionRegistry.getAllSessions()) {
+            sendMessage(userSession, encodedMessage);
         }
     }
 
     public void sendMessageToAllExceptSelf(String userId, MessageWrapperDTO messageWrapperDTO) {
-        Set<String> mySessionIds = userIdToSessionIds.get(userId);
+        EncodedMessage encodedMessage = EncodedMessage.encode(messageWrapperDTO);
+        for (UserSession userSession : sessionRegistry.getAllSessions()) {
+            if (!userSession.getUserId().equals(userId)) {
+                sendMessage(userSession, encodedMessage);
+            }
+        }
+    }
 
-        Collection<Collection<String>> allSessions = userIdToSessionIds.asMap().values();
-        for (Collection<String> sessionIdCollection : allSessions) {
-            for (String sessionId : sessionIdCollection) {
-                if (mySessionIds.contains(sessionId)) {
-                    continue;
-                }
+    // Once a session registers interests it only receives presence updates for those users
+    // null interests puts the session back on the global feed
+    public boolean setPresenceInterests(String sessionId, Set<String> watchedUserIds) {
+        UserSession userSession = sessionRegistry.get(sessionId);
+        if (userSession == null) {
+            return false;
+        }
+
+        if (watchedUserIds == null) {
+            presenceSubscriptions.removeSession(sessionId);
+            unsubscribedSessions.put(sessionId, userSession);
+            // the session may have closed meanwhile, don't leave it behind
+            if (sessionRegistry.get(sessionId) == null) {
+                unsubscribedSessions.remove(sessionId);
+            }
+        } else {
+            unsubscribedSessions.remove(sessionId);
+            presenceSubscriptions.setInterests(sessionId, watchedUserIds);
+        }
+
+        return true;
+    }
+
+    // Sends a presence update about one user to every session watching that user, and to every other user's session without registered interests
+    // (the user's own sessions don't get their own update unless they asked for it, like sendMessageToAllExceptSelf)
+    public void sendMessageToWatchers(String userId, MessageWrapperDTO messageWrapperDTO) {
+        EncodedMessage encodedMessage = EncodedMessage.encode(messageWrapperDTO);
+        for (UserSession userSession : unsubscribedSessions.values()) {
+            if (!userSession.getUserId().equals(userId)) {
+                sendMessage(userSession, encodedMessage);
+            }
+        }
+
+        for (String sessionId : presenceSubscriptions.getWatchers(userId)) {
+            sendMessageToSession(sessionId, encodedMessage);
+        }
+    }
+
+    // Sends a batch of presence updates, sessions without registered interests get the whole batch minus the items about their own user
+    // sessions with interests get only the items about users they watch, and nothing if they don't watch any of them
+    public <T> void sendBatchToWatchers(MessageCategory category, List<T> items, Function<T, String> getUserId) {
+        sendBatchToUnsubscribed(category, items, getUserId);
+
+        Map<String, List<T>> itemsBySessionId = new HashMap<>();
+        for (T item : items) {
+            for (String sessionId : presenceSubscriptions.getWatchers(getUserId.apply(item))) {
+                itemsBySessionId.computeIfAbsent(sessionId, id -> new ArrayList<>()).add(item);
+            }
+        }
+
+        for (Map.Entry<String, List<T>> entry : itemsBySessionId.entrySet()) {
+            sendMessageToSession(entry.getKey(), EncodedMessage.encode(new MessageWrapperDTO(category, entry.getValue())));
+        }
+    }
+
+    // everyone shares one encoding of the whole batch, except the users the batch is about, who each get one without their own items
+    private <T> void sendBatchToUnsubscribed(MessageCategory category, List<T> items, Function<T, String> getUserId) {
+        Set<String> itemUserIds = new HashSet<>();
+        for (T item : items) {
+            itemUserIds.add(getUserId.apply(item));
+        }
+
+        EncodedMessage wholeBatch = EncodedMessage.encode(new MessageWrapperDTO(category, items));
+        Map<String, EncodedMessage> batchWithoutSelf = new HashMap<>();
+        for (UserSession userSession : unsubscribedSessions.values()) {
+            String userId = userSession.getUserId();
+            if (!itemUserIds.contains(userId)) {
+                sendMessage(userSession, wholeBatch);
+                continue;
+            }
 
-                UserSession userSession;
-                try {
-                    userSession = sessionIdToUserSession.getUnchecked(sessionId);
-                    sendMessage(userSession.getSession(), messageWrapperDTO);
-                } catch (CacheLoader.InvalidCacheLoadException e) {
-                    log.error("sendMessageToAllExceptSelf found cached sessionId without an associated userSession. sessionId: {}", sessionId);
+            EncodedMessage encodedMessage = batchWithoutSelf.computeIfAbsent(userId, id -> {
+                List<T> others = new ArrayList<>(items.size());
+                for (T item : items) {
+                    if (!id.equals(getUserId.apply(item))) {
+                        others.add(item);
+                    }
                 }
+
+                return others.isEmpty() ? null : EncodedMessage.encode(new MessageWrapperDTO(category, others));
+            });
+            if (encodedMessage != null) {
+                sendMessage(userSession, encodedMessage);
+            }
+        }
+    }
+
+    public void sendMessageToSession(String sessionId, MessageWrapperDTO messageWrapperDTO) {
+        sendMessageToSession(sessionId, EncodedMessage.encode(messageWrapperDTO));
+    }
+
+    private void sendMessageToSession(String sessionId, EncodedMessage encodedMessage) {
+        UserSession userSession = sessionRegistry.get(sessionId);
+        if (userSession != null) {
+            sendMessage(userSession, encodedMessage);
+        }
+    }
+
+    // sessionId -> number of messages waiting to be written to that session
+    public Map<String, Integer> getOutboundQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (UserSession userSession : sessionRegistry.getAllSessions()) {
+            SessionOutboundQueue outboundQueue = userSession.getOutboundQueue();
+            if (outboundQueue != null) {
+                depths.put(userSession.getSession().getId(), outboundQueue.getDepth());
+            }
+        }
+
+        return depths;
+    }
+
+    private double getTotalOutboundQueueDepth() {
+        long total = 0;
+        for (UserSession userSession : sessionRegistry.getAllSessions()) {
+            SessionOutboundQueue outboundQueue = userSession.getOutboundQueue();
+            if (outboundQueue != null) {
+                total += outboundQueue.getDepth();
+            }
+        }
+
+        return total;
+    }
+
+    void evictSlowConsumers() {
+        for (UserSession userSession : sessionRegistry.getAllSessions()) {
+            SessionOutboundQueue outboundQueue = userSession.getOutboundQueue();
+            if (outboundQueue != null) {
+                outboundQueue.evictIfSlow();
             }
         }
     }
 
-    private void sendMessage(Session session, MessageWrapperDTO messageWrapperDTO) {
-        if (session == null || messageWrapperDTO == null) {
-            log.warn("Attempted to send message, but session and/or message was null. session {} message {}", session, messageWrapperDTO);
+    // Closing the socket triggers WebSocketController.onClose, which takes care of the session cleanup and status updates
+    private void evict(SessionOutboundQueue outboundQueue) {
+        evictionCounter.increment();
+        Session session = outboundQueue.getSession();
+        evictionExecutor.execute(() -> {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Slow consumer"));
+            } catch (IOException e) {
+                log.error("Failed to close evicted session {}", session.getId(), e);
+            }
+        });
+    }
+
+    private void sendMessage(UserSession userSession, EncodedMessage encodedMessage) {
+        if (userSession == null || userSession.getOutboundQueue() == null || encodedMessage == null) {
+            log.warn("Attempted to send message, but session and/or message was null. session {} message {}", userSession, encodedMessage);
             return;
         }
 
-        try {
-            session.getBasicRemote().sendObject(messageWrapperDTO);
-        } catch (EncodeException | IOException e) {
-            log.error("Failed to sendMessage to session: {} message: {}", session, messageWrapperDTO, e);
-            // TODO investiage. I don't think we should close the session every time we fail to message, we already have a listeneer for closed/error sessions
-            //closeSession(session.getId(), false);
+        // never blocks, the message is written to the socket asynchronously
+        if (!userSession.getOutboundQueue().enqueue(encodedMessage)) {
+            log.warn("Dropped message for evicted session: {} message: {}", userSession.getSession().getId(), encodedMessage);
         }
     }
 }
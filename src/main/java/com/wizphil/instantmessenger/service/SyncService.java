@@ -0,0 +1,116 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.cache.SyncEventLog;
+import com.wizphil.instantmessenger.dto.SyncDTO;
+import com.wizphil.instantmessenger.dto.SyncEventDTO;
+import com.wizphil.instantmessenger.dto.UserStatusDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Delta sync for reconnecting clients, returns the events a user missed since their cursor (see SyncEventLog) plus their unread counts
+// so a reconnect costs what was missed instead of reloading every user and conversation
+// Cursors are opaque to clients, they hold the log's epoch and the seq of the last event the client has
+@Component
+@Setter
+@Slf4j
+public class SyncService {
+    private static final byte CURSOR_VERSION = 1;
+    private static final int CURSOR_LENGTH = 1 + 2 * Long.BYTES;
+
+    @Autowired
+    private SyncEventLog syncEventLog;
+
+    @Autowired
+    private MessageService messageService;
+
+    // events per response, clients sync again while hasMore is set
+    @Value("${sync.max-events:1000}")
+    private int maxEvents;
+
+    // since null is a client that has never synced, it gets a full resync and a cursor to start from
+    public SyncDTO sync(String userId, String since) {
+        UserService.validateId(userId);
+
+        SyncEventLog.Batch batch = null;
+        if (since != null) {
+            long[] cursor = decodeCursor(since);
+            if (cursor[0] == syncEventLog.getEpoch()) {
+                batch = syncEventLog.read(userId, cursor[1], maxEvents);
+            }
+        }
+
+        // unread counts are read after the cursor is, so they already include everything up to it
+        // counts are absolute, clients replace theirs instead of adding the events' messages to them
+        if (batch == null) {
+            log.debug("Cursor {} of user {} is too old, full resync", since, userId);
+            String cursor = encodeCursor(syncEventLog.getEpoch(), syncEventLog.getHeadSeq());
+            return SyncDTO.builder()
+                    .cursor(cursor)
+                    .fullResync(true)
+                    .events(List.of())
+                    .unreadCounts(messageService.getUnreadMessageCounts(userId))
+                    .groupUnreadCounts(messageService.getGroupUnreadMessageCounts(userId))
+                    .build();
+        }
+
+        return SyncDTO.builder()
+                .cursor(encodeCursor(syncEventLog.getEpoch(), batch.getLastSeq()))
+                .hasMore(batch.isHasMore())
+                .events(latestStatusOnly(batch.getEvents()))
+                .unreadCounts(messageService.getUnreadMessageCounts(userId))
+                .groupUnreadCounts(messageService.getGroupUnreadMessageCounts(userId))
+                .build();
+    }
+
+    // a client only needs where each user ended up, not every status they went through while it was away
+    private static List<SyncEventDTO> latestStatusOnly(List<SyncEventDTO> events) {
+        Map<String, Integer> statusIndexByUserId = new HashMap<>();
+        List<SyncEventDTO> collapsed = new ArrayList<>(events);
+        for (int i = 0; i < collapsed.size(); i++) {
+            SyncEventDTO event = collapsed.get(i);
+            if (event.getCategory() == MessageCategory.UpdateUserStatus) {
+                Integer previous = statusIndexByUserId.put(((UserStatusDTO) event.getPayload()).getId(), i);
+                if (previous != null) {
+                    collapsed.set(previous, null);
+                }
+            }
+        }
+
+        collapsed.removeIf(event -> event == null);
+        return collapsed;
+    }
+
+    static String encodeCursor(long epoch, long seq) {
+        ByteBuffer bytes = ByteBuffer.allocate(CURSOR_LENGTH).put(CURSOR_VERSION).putLong(epoch).putLong(seq);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+    }
+
+    // {epoch, seq}
+    static long[] decodeCursor(String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidEntityException();
+        }
+
+        if (bytes.length != CURSOR_LENGTH || bytes[0] != CURSOR_VERSION) {
+            throw new InvalidEntityException();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, 2 * Long.BYTES);
+        return new long[] {buffer.getLong(), buffer.getLong()};
+    }
+}
@@ -0,0 +1,178 @@
+package com.wizphil.instantmessenger.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wizphil.instantmessenger.dto.GroupUserDTO;
+import com.wizphil.instantmessenger.dto.GroupUsersDTO;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.persistence.Group;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Typing pings are our highest volume and lowest value traffic, so this keeps them as cheap as possible
+// Pings are throttled per (from, target) pair, a client sending one per keystroke only costs us one send per throttle window
+// Group typing is never fanned out on the request thread, we record who is typing and a background thread sends one GroupTyping frame
+// per group whenever the set of typists changes (someone starts, or someone hasn't pinged for typing.expire-ms)
+@Component
+@Setter
+@Slf4j
+public class TypingIndicatorService {
+    @Autowired
+    private SessionService sessionService;
+
+    @Autowired
+    private GroupService groupService;
+
+    @Value("${typing.throttle-ms:1000}")
+    private long throttleMs;
+
+    // 0 disables aggregation, every group ping that passes the throttle is sent immediately as GroupTypingPing
+    @Value("${typing.group.window-ms:500}")
+    private long groupWindowMs;
+
+    // a user stops showing as typing in a group when they haven't pinged for this long, should be well above throttleMs
+    @Value("${typing.expire-ms:5000}")
+    private long expireMs;
+
+    // "from|target" -> time of the last ping we let through
+    private Cache<String, Long> lastPingTimes;
+
+    // groupId -> userId -> time of that user's last ping
+    // the inner maps are only touched inside compute calls on the outer map, which locks per group
+    private final Map<String, Map<String, Long>> typistsByGroup = new ConcurrentHashMap<>();
+    // groups where somebody started typing since the last flush
+    private final Set<String> changedGroupIds = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    public void init() {
+        lastPingTimes = CacheBuilder.newBuilder()
+                .expireAfterWrite(Math.max(throttleMs, 1), TimeUnit.MILLISECONDS)
+                .build();
+
+        if (groupWindowMs <= 0) {
+            log.info("Group typing aggregation disabled, pings are sent immediately");
+            return;
+        }
+
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "typing-indicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flush, groupWindowMs, groupWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+    }
+
+    public void userTyping(String fromUserId, String toUserId) {
+        if (isThrottled(fromUserId, toUserId)) {
+            return;
+        }
+
+        // this only enqueues onto the recipient's outbound queues, so it's fine to do on the request thread
+        sessionService.sendMessageToUser(toUserId, new MessageWrapperDTO(MessageCategory.UserTypingPing, fromUserId));
+    }
+
+    public void groupTyping(String userId, Group group) {
+        if (isThrottled(userId, group.getId())) {
+            return;
+        }
+
+        if (flushExecutor == null) {
+            GroupUserDTO groupUserDTO = GroupUserDTO.builder()
+                    .userId(userId)
+                    .groupId(group.getId())
+                    .build();
+
+            // don't send isTyping to ourselves, and don't touch the cached group's userIds
+            Set<String> userIds = new HashSet<>(group.getUserIds());
+            userIds.remove(userId);
+            sessionService.sendMessageToUsers(userIds, new MessageWrapperDTO(MessageCategory.GroupTypingPing, groupUserDTO));
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        typistsByGroup.compute(group.getId(), (groupId, typists) -> {
+            if (typists == null) {
+                typists = new HashMap<>();
+            }
+
+            if (typists.put(userId, now) == null) {
+                changedGroupIds.add(groupId);
+            }
+
+            return typists;
+        });
+    }
+
+    private boolean isThrottled(String fromId, String targetId) {
+        if (throttleMs <= 0) {
+            return false;
+        }
+
+        return lastPingTimes.asMap().putIfAbsent(fromId + '|' + targetId, System.currentTimeMillis()) != null;
+    }
+
+    void flush() {
+        long expiredBefore = System.currentTimeMillis() - expireMs;
+        for (String groupId : typistsByGroup.keySet()) {
+            try {
+                flushGroup(groupId, expiredBefore);
+            } catch (RuntimeException e) {
+                // an exception would cancel the scheduled flush, so we never let one escape
+                log.error("TypingIndicatorService failed to flush group {}", groupId, e);
+            }
+        }
+    }
+
+    private void flushGroup(String groupId, long expiredBefore) {
+        Set<String> typingUserIds = new HashSet<>();
+        boolean[] expired = new boolean[1];
+        typistsByGroup.computeIfPresent(groupId, (id, typists) -> {
+            expired[0] = typists.values().removeIf(lastPing -> lastPing < expiredBefore);
+            typingUserIds.addAll(typists.keySet());
+            return typists.isEmpty() ? null : typists;
+        });
+
+        boolean started = changedGroupIds.remove(groupId);
+        if (!expired[0] && !started) {
+            return;
+        }
+
+        // membership may have changed since the ping, so look it up when we send
+        Group group = groupService.getGroup(groupId);
+        if (group == null || group.getUserIds() == null) {
+            return;
+        }
+
+        GroupUsersDTO groupUsersDTO = GroupUsersDTO.builder()
+                .groupId(groupId)
+                .userIds(typingUserIds)
+                .build();
+
+        // every member gets the same frame so it's encoded once, typists should ignore their own id
+        sessionService.sendMessageToUsers(group.getUserIds(), new MessageWrapperDTO(MessageCategory.GroupTyping, groupUsersDTO));
+    }
+}
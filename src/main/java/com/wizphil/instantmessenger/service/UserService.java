@@ -2,11 +2,15 @@ package com.wizphil.instantmessenger.service;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.cache.LoadingCache;
 import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.dto.RosterDTO;
 import com.wizphil.instantmessenger.dto.UserInfoDTO;
 import com.wizphil.instantmessenger.dto.UserDetailsDTO;
 import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.WireFormat;
 import com.wizphil.instantmessenger.exceptions.InvalidFontSize;
 import com.wizphil.instantmessenger.exceptions.NameTooLargeException;
 import com.wizphil.instantmessenger.exceptions.NullIdException;
@@ -23,19 +27,25 @@ import com.wizphil.instantmessenger.persistence.user.User;
 import com.wizphil.instantmessenger.persistence.user.UserSession;
 import com.wizphil.instantmessenger.persistence.user.UserSettings;
 import com.wizphil.instantmessenger.persistence.user.UserStatus;
+import com.wizphil.instantmessenger.cache.SyncEventLog;
 import com.wizphil.instantmessenger.cache.UserCache;
+import com.wizphil.instantmessenger.cache.UserRoster;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PostConstruct;
 import javax.websocket.Session;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
 @Setter
@@ -48,11 +58,38 @@ public class UserService {
     @Autowired
     private SessionService sessionService;
 
+    @Autowired
+    private PresenceCoalescer presenceCoalescer;
+
+    @Autowired
+    private SyncEventLog syncEventLog;
+
+    @Autowired
+    private UserRoster userRoster;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
     // TODO MAX_FONT_SIZE should be a dynamic server config
     private static final int MAX_FONT_SIZE = 200;
     // TODO MAX_NAME_SIZE should be a dynamic server config
     private static final int MAX_NAME_SIZE = 50;
 
+    // roster pages, for clients that don't want the whole roster in one response
+    @Value("${roster.page.default-size:500}")
+    private int rosterDefaultPageSize;
+
+    @Value("${roster.page.max-size:2000}")
+    private int rosterMaxPageSize;
+
+    // every status change is a roster change, so in a busy org the serialized roster would be rebuilt for almost every login
+    // instead logins may get one up to this old, its etag is the older version so the client catches up with the changes since
+    @Value("${roster.snapshot.max-age-ms:1000}")
+    private long rosterSnapshotMaxAgeMs;
+
+    private volatile SerializedRoster serializedRoster;
+    private final ReentrantLock serializedRosterLock = new ReentrantLock();
+
     private final LoadingCache<String, UserInfoDTO> userInfoCache = CacheBuilder.newBuilder().build(new CacheLoader<>() {
         @Override
         public UserInfoDTO load(String id) {
@@ -71,23 +108,33 @@ public class UserService {
         }
     });
 
-    @PostConstruct
-    public void init() {
-        log.info("userService loading all users");
-        int numUsers = loadAllOffline();
-        log.info("userService loaded {} users", numUsers);
-    }
-
     public int loadAllOffline() {
         List<User> allUsers = userCache.loadAll();
         for (User user : allUsers) {
             userInfoCache.put(user.getId(), User.toUserInfoDTO(user));
         }
 
+        userRoster.load(userInfoCache.asMap().keySet());
         return allUsers.size();
     }
 
+    // loadAllOffline in pieces, for the startup warm-up (see WarmUpService), the users must already be in the UserCache
+    public void warmUserInfo(List<User> users) {
+        List<String> ids = new ArrayList<>(users.size());
+        for (User user : users) {
+            // a user whose info changed while warming up keeps the newer info
+            userInfoCache.asMap().putIfAbsent(user.getId(), User.toUserInfoDTO(user));
+            ids.add(user.getId());
+        }
+
+        userRoster.load(ids);
+    }
+
     public void newUserSession(String id, Session session) {
+        newUserSession(id, session, WireFormat.JsonV1);
+    }
+
+    public void newUserSession(String id, Session session, WireFormat wireFormat) {
         validateUserEnabled(id);
 
         if (session == null) {
@@ -105,6 +152,7 @@ public class UserService {
         UserSession userSession = UserSession.builder()
                 .session(session)
                 .userStatus(userStatus)
+                .wireFormat(wireFormat)
                 .build();
 
         sessionService.addSession(id, userSession);
@@ -158,6 +206,8 @@ public class UserService {
         if (user.getUserDetails().isEnabled()) {
             // update the cache and clients, we have a new user!
             userInfoCache.put(user.getId(), User.toUserInfoDTO(user));
+            userRoster.put(user.getId());
+            syncEventLog.append(MessageCategory.NewUser, user, null);
             sessionService.sendMessageToAll(new MessageWrapperDTO(MessageCategory.NewUser, user));
         }
 
@@ -174,11 +224,132 @@ public class UserService {
 
     // When a user logs in, they need the entire list of enabled users with their status
     // We trust that the cache is accurate and up to date
+    // Large rosters should be loaded with getUserInfoPage and kept up to date with getUserInfoChangedSince
     public Collection<UserInfoDTO> getAllUserInfo() {
-        // TODO page results, don't want to send too many users in one call
         return userInfoCache.asMap().values();
     }
 
+    // getAllUserInfo serialized once and shared by every login until the roster changes (see SerializedRoster)
+    // one thread rebuilds it, everyone else keeps getting the previous one meanwhile instead of waiting
+    public SerializedRoster getSerializedRoster() {
+        SerializedRoster current = serializedRoster;
+        if (current != null && isFresh(current)) {
+            return current;
+        }
+
+        if (current != null && !serializedRosterLock.tryLock()) {
+            return current;
+        }
+
+        if (current == null) {
+            serializedRosterLock.lock();
+        }
+
+        try {
+            current = serializedRoster;
+            if (current != null && isFresh(current)) {
+                return current;
+            }
+
+            // read before the roster, so a client holding this version never misses a change
+            long version = userRoster.getVersion();
+            current = SerializedRoster.of(version, objectMapper.writeValueAsBytes(getAllUserInfo()));
+            serializedRoster = current;
+            log.debug("Serialized roster version {}, {} bytes, {} gzipped", version, current.getJson().length, current.getGzip().length);
+            return current;
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize the roster", e);
+        } finally {
+            serializedRosterLock.unlock();
+        }
+    }
+
+    private boolean isFresh(SerializedRoster current) {
+        return current.getVersion() == userRoster.getVersion() || System.currentTimeMillis() - current.getBuiltAt() < rosterSnapshotMaxAgeMs;
+    }
+
+    // changes whenever any user's info does, clients that already have this version of the roster don't need it again
+    public long getRosterVersion() {
+        return userRoster.getVersion();
+    }
+
+    public RosterDTO getUserInfoChangedSince(long sinceVersion) {
+        // read before the changes, a change that lands in between is just sent again next time
+        long version = userRoster.getVersion();
+        List<String> changedUserIds = userRoster.changedSince(sinceVersion);
+        if (changedUserIds == null) {
+            return RosterDTO.builder()
+                    .version(version)
+                    .full(true)
+                    .users(List.of())
+                    .removedUserIds(List.of())
+                    .build();
+        }
+
+        List<UserInfoDTO> users = new ArrayList<>();
+        List<String> removedUserIds = new ArrayList<>();
+        for (String id : changedUserIds) {
+            // getIfPresent, a removed user shouldn't be loaded back in
+            UserInfoDTO userInfo = userRoster.contains(id) ? userInfoCache.getIfPresent(id) : null;
+            if (userInfo == null) {
+                removedUserIds.add(id);
+            } else {
+                users.add(userInfo);
+            }
+        }
+
+        return RosterDTO.builder()
+                .version(version)
+                .users(users)
+                .removedUserIds(removedUserIds)
+                .build();
+    }
+
+    // the roster in user id order, cursor is the nextCursor of the previous page
+    public RosterDTO getUserInfoPage(String cursor, Integer limit) {
+        if (limit != null && limit < 1) {
+            throw new InvalidEntityException();
+        }
+
+        int pageSize = limit == null ? rosterDefaultPageSize : Math.min(limit, rosterMaxPageSize);
+        long version = userRoster.getVersion();
+
+        // one more than the page, so we know if there's more
+        List<String> ids = userRoster.page(cursor == null ? null : decodeRosterCursor(cursor), pageSize + 1);
+        boolean hasMore = ids.size() > pageSize;
+        if (hasMore) {
+            ids = ids.subList(0, pageSize);
+        }
+
+        List<UserInfoDTO> users = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            UserInfoDTO userInfo = userInfoCache.getIfPresent(id);
+            if (userInfo != null) {
+                users.add(userInfo);
+            }
+        }
+
+        return RosterDTO.builder()
+                .version(version)
+                .users(users)
+                .removedUserIds(List.of())
+                .nextCursor(hasMore ? encodeRosterCursor(ids.get(ids.size() - 1)) : null)
+                .build();
+    }
+
+    // roster cursors are the last user id of the page, base64 so clients treat them as opaque
+    private static String encodeRosterCursor(String userId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(userId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeRosterCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidEntityException();
+        }
+    }
+
     public UserInfoDTO getUserInfoByUsername(String username) {
         validateUsername(username);
         username = username.trim();
@@ -242,12 +413,14 @@ public class UserService {
                 UserInfoDTO userInfo = userInfoCache.getUnchecked(id);
                 userInfo.setUserDetails(userDetails);
                 userInfoCache.put(id, userInfo);
+                userRoster.put(id);
             } catch (CacheLoader.InvalidCacheLoadException e) {
                 log.error("updateUserProfile attemped to update userDetails. Could not find userInfo. This is very odd. user {}", oldUser);
             }
 
             UserDetailsDTO userDetailsDTO = new UserDetailsDTO(id, userDetails);
-            sessionService.sendMessageToAll(new MessageWrapperDTO(MessageCategory.UpdateUserDetails, userDetailsDTO));
+            syncEventLog.append(MessageCategory.UpdateUserDetails, userDetailsDTO, null);
+            sessionService.sendMessageToWatchers(id, new MessageWrapperDTO(MessageCategory.UpdateUserDetails, userDetailsDTO));
         }
 
         return user;
@@ -314,6 +487,7 @@ public class UserService {
         UserStatusDTO userStatusDTO = UserStatus.toUserStatusDTO(id, userStatus);
         userInfo.setUserStatus(userStatus);
         userInfoCache.put(id, userInfo);
+        userRoster.put(id);
 
         // by the end of this call, if the status is offline, then it means the service believes the user is offline and has no active sessions
         // just in case we messed up somewhere and there are sessions still in the cache, we should clean then up
@@ -327,10 +501,12 @@ public class UserService {
             log.warn("setStatus called on a deactivated user: {}", userInfo);
             // we don't store deactivated users in the cache
             userInfoCache.invalidate(id);
+            userRoster.remove(id);
             throw new UserDisabledException(id);
         }
 
-        sessionService.sendMessageToAllExceptSelf(id, new MessageWrapperDTO(MessageCategory.UpdateUserStatus, userStatusDTO));
+        syncEventLog.append(MessageCategory.UpdateUserStatus, userStatusDTO, null);
+        presenceCoalescer.publish(userStatusDTO);
 
         log.debug("setStatus finished; id: {} sessionId: {} userStatus: {}", id, sessionId, userStatus);
     }
@@ -351,7 +527,9 @@ public class UserService {
         // add user to the cache
         UserInfoDTO userInfoDTO = User.toUserInfoDTO(user);
         userInfoCache.put(id, userInfoDTO);
+        userRoster.put(id);
 
+        syncEventLog.append(MessageCategory.NewUser, user, null);
         sessionService.sendMessageToAll(new MessageWrapperDTO(MessageCategory.NewUser, user));
         log.info("successfully enabled user {}", id);
         return user;
@@ -372,8 +550,10 @@ public class UserService {
 
         // remove user from cache
         userInfoCache.invalidate(id);
+        userRoster.remove(id);
         sessionService.closeUserSessions(id);
 
+        syncEventLog.append(MessageCategory.DisableUser, id, null);
         sessionService.sendMessageToAll(new MessageWrapperDTO(MessageCategory.DisableUser, id));
         log.info("successfully disabled user {}", id);
         return user;
@@ -0,0 +1,200 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.cache.GroupCache;
+import com.wizphil.instantmessenger.cache.UnreadSnapshotter;
+import com.wizphil.instantmessenger.cache.UserCache;
+import com.wizphil.instantmessenger.persistence.Group;
+import com.wizphil.instantmessenger.persistence.user.User;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Loads every user and group into the caches on startup, in the background, so the server is up (and its health endpoint answers) right away
+// Users and groups are streamed from mongo at the same time, each with a cursor that reads batch-size documents per round trip,
+// and every batch is cached on the worker pool while the cursor reads the next one
+// Until the warm-up is done the server isn't ready: health is OUT_OF_SERVICE and websocket connections are turned away (see WebSocketController)
+// Unread snapshots start last, a snapshot taken before every group is loaded would drop the cursors of the groups that aren't (see UnreadSnapshotter)
+@Component
+@Setter
+@Slf4j
+public class WarmUpService {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserCache userCache;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private GroupCache groupCache;
+
+    @Autowired
+    private UnreadSnapshotter unreadSnapshotter;
+
+    @Value("${warmup.batch-size:1000}")
+    private int batchSize;
+
+    // 0 means one per processor
+    @Value("${warmup.threads:0}")
+    private int threads;
+
+    @Value("${warmup.progress-interval-ms:5000}")
+    private long progressIntervalMs;
+
+    private final AtomicLong usersLoaded = new AtomicLong();
+    private final AtomicLong groupsLoaded = new AtomicLong();
+    private long expectedUsers;
+    private long expectedGroups;
+    private long startTime;
+    private int workerCount;
+
+    private ExecutorService readers;
+    private ExecutorService workers;
+    private ScheduledExecutorService progressExecutor;
+    private volatile boolean ready;
+    private volatile Throwable failure;
+
+    @PostConstruct
+    public void init() {
+        workerCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        readers = Executors.newFixedThreadPool(2, daemonThreads("warm-up-reader"));
+        workers = Executors.newFixedThreadPool(workerCount, daemonThreads("warm-up-worker"));
+        progressExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("warm-up-progress"));
+
+        startTime = System.currentTimeMillis();
+        expectedUsers = mongoTemplate.getCollection(mongoTemplate.getCollectionName(User.class)).estimatedDocumentCount();
+        expectedGroups = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Group.class)).estimatedDocumentCount();
+        log.info("Warm-up started, about {} users and {} groups, batch size {}, {} workers", expectedUsers, expectedGroups, batchSize, workerCount);
+
+        userCache.startWarmUp(expectedUsers);
+        progressExecutor.scheduleWithFixedDelay(this::logProgress, progressIntervalMs, progressIntervalMs, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Void> users = CompletableFuture.runAsync(() -> stream(User.class, this::warmUsers, usersLoaded), readers);
+        CompletableFuture<Void> groups = CompletableFuture.runAsync(() -> stream(Group.class, groupCache::warm, groupsLoaded), readers);
+        CompletableFuture.allOf(users, groups)
+                .thenRun(userCache::finishWarmUp)
+                .thenRun(unreadSnapshotter::start)
+                .whenComplete((result, e) -> finish(e));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        progressExecutor.shutdownNow();
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // null unless the warm-up failed
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public long getUsersLoaded() {
+        return usersLoaded.get();
+    }
+
+    public long getGroupsLoaded() {
+        return groupsLoaded.get();
+    }
+
+    // estimates from the collection metadata, read when the warm-up started
+    public long getExpectedUsers() {
+        return expectedUsers;
+    }
+
+    public long getExpectedGroups() {
+        return expectedGroups;
+    }
+
+    private void warmUsers(List<User> users) {
+        userCache.warm(users);
+        userService.warmUserInfo(users);
+    }
+
+    // the cursor is read on this thread, batches are cached on the workers, at most two batches per worker are waiting so memory stays bounded
+    private <T> void stream(Class<T> type, Consumer<List<T>> warm, AtomicLong loaded) {
+        Semaphore pending = new Semaphore(2 * workerCount);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+
+        Query query = new Query().cursorBatchSize(batchSize);
+        try (CloseableIterator<T> documents = mongoTemplate.stream(query, type)) {
+            List<T> batch = new ArrayList<>(batchSize);
+            while (documents.hasNext()) {
+                batch.add(documents.next());
+                if (batch.size() == batchSize || !documents.hasNext()) {
+                    pending.acquireUninterruptibly();
+                    List<T> full = batch;
+                    batches.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            warm.accept(full);
+                            loaded.addAndGet(full.size());
+                        } finally {
+                            pending.release();
+                        }
+                    }, workers));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        }
+
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+    }
+
+    private void finish(Throwable e) {
+        progressExecutor.shutdownNow();
+        readers.shutdown();
+        workers.shutdown();
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (e != null) {
+            failure = e;
+            log.error("Warm-up failed after {}ms with {} users and {} groups loaded, the server will stay out of service", elapsed, usersLoaded.get(),
+                    groupsLoaded.get(), e);
+            return;
+        }
+
+        ready = true;
+        log.info("Warm-up finished in {}ms, {} users and {} groups loaded, accepting sessions", elapsed, usersLoaded.get(), groupsLoaded.get());
+    }
+
+    private void logProgress() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        log.info("Warm-up in progress: {}/{} users, {}/{} groups, {} users/s", usersLoaded.get(), expectedUsers, groupsLoaded.get(), expectedGroups,
+                usersLoaded.get() * 1000 / elapsed);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
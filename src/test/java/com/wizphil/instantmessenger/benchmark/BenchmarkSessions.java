@@ -0,0 +1,47 @@
+package com.wizphil.instantmessenger.benchmark;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.lang.reflect.Proxy;
+
+// Lightweight fake sockets for benchmarks, every async write completes immediately on the calling thread
+// Proxies are used instead of mocks so the fake socket costs as little as possible compared to what is being measured
+final class BenchmarkSessions {
+    private static final SendResult OK = new SendResult();
+
+    private BenchmarkSessions() {
+    }
+
+    static Session session(String id) {
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(BenchmarkSessions.class.getClassLoader(),
+                new Class<?>[]{RemoteEndpoint.Async.class}, (proxy, method, args) -> {
+                    if (args != null && args.length == 2 && args[1] instanceof SendHandler) {
+                        ((SendHandler) args[1]).onResult(OK);
+                    }
+
+                    return null;
+                });
+
+        return (Session) Proxy.newProxyInstance(BenchmarkSessions.class.getClassLoader(),
+                new Class<?>[]{Session.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getAsyncRemote":
+                            return async;
+                        case "isOpen":
+                            return true;
+                        case "hashCode":
+                            return id.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "BenchmarkSession(" + id + ")";
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,87 @@
+package com.wizphil.instantmessenger.benchmark;
+
+import com.wizphil.instantmessenger.config.EncodedMessage;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.persistence.user.UserSession;
+import com.wizphil.instantmessenger.persistence.user.UserStatus;
+import com.wizphil.instantmessenger.service.SessionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// CPU cost of one UpdateUserStatus broadcast to every connected session
+// perRecipientEncoding is the old path (Jackson runs once per session), sendMessageToAll is the encode once path
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.wizphil.instantmessenger.benchmark.BroadcastEncodingBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastEncodingBenchmark {
+    @Param({"100", "5000"})
+    private int sessionCount;
+
+    private SessionService sessionService;
+    private final List<UserSession> userSessions = new ArrayList<>();
+    private MessageWrapperDTO statusUpdate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessionService = new SessionService();
+        sessionService.setMeterRegistry(new SimpleMeterRegistry());
+        sessionService.setOutboundMaxDepth(Integer.MAX_VALUE);
+        sessionService.setOutboundHighWatermark(Integer.MAX_VALUE);
+        sessionService.setOutboundLowWatermark(0);
+        sessionService.setSlowConsumerTimeoutMs(Long.MAX_VALUE);
+        sessionService.setSlowConsumerSweepMs(60_000);
+        sessionService.init();
+
+        for (int i = 0; i < sessionCount; i++) {
+            UserSession userSession = UserSession.builder()
+                    .session(BenchmarkSessions.session("session" + i))
+                    .userStatus(UserStatus.builder().status(Status.Available).time(System.currentTimeMillis()).build())
+                    .build();
+            sessionService.addSession("user" + i, userSession);
+            userSessions.add(userSession);
+        }
+
+        UserStatus userStatus = UserStatus.builder().status(Status.Busy).time(System.currentTimeMillis()).build();
+        statusUpdate = new MessageWrapperDTO(MessageCategory.UpdateUserStatus, UserStatus.toUserStatusDTO("5e7a3f9c2b1d4e0012345678", userStatus));
+    }
+
+    @Benchmark
+    public void perRecipientEncoding() {
+        for (UserSession userSession : userSessions) {
+            userSession.getOutboundQueue().enqueue(EncodedMessage.encode(statusUpdate));
+        }
+    }
+
+    @Benchmark
+    public void sendMessageToAll() {
+        sessionService.sendMessageToAll(statusUpdate);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BroadcastEncodingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
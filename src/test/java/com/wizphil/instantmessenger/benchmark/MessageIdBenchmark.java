@@ -0,0 +1,79 @@
+package com.wizphil.instantmessenger.benchmark;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.wizphil.instantmessenger.service.MessageIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 32 threads creating messages in the same conversation at once
+// uniqueCurrentTimeMS is the old per conversation time (a LoadingCache of AtomicLongs, looked up twice per CAS attempt), nextId is MessageIdGenerator
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.wizphil.instantmessenger.benchmark.MessageIdBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class MessageIdBenchmark {
+    private static final String CONVERSATION_ID = "alicebob";
+
+    private final LoadingCache<String, AtomicLong> lastMessageTimeCache = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.MINUTES)
+            .build(new CacheLoader<>() {
+        @Override
+        public AtomicLong load(String id) {
+            return new AtomicLong(System.currentTimeMillis());
+        }
+    });
+
+    private final MessageIdGenerator messageIdGenerator = new MessageIdGenerator();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        messageIdGenerator.setNodeId(1);
+        messageIdGenerator.init();
+    }
+
+    @Benchmark
+    public long uniqueCurrentTimeMS() {
+        long now = System.currentTimeMillis();
+        while(true) {
+            long lastTime = lastMessageTimeCache.getUnchecked(CONVERSATION_ID).get();
+            if (lastTime >= now) {
+                now = lastTime + 1;
+            }
+
+            if (lastMessageTimeCache.getUnchecked(CONVERSATION_ID).compareAndSet(lastTime, now)) {
+                return now;
+            }
+        }
+    }
+
+    @Benchmark
+    public long nextId() {
+        return messageIdGenerator.nextId();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MessageIdBenchmark.class.getSimpleName()).build()).run();
+    }
+}
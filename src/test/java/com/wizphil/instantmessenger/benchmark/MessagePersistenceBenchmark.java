@@ -0,0 +1,92 @@
+package com.wizphil.instantmessenger.benchmark;
+
+import com.wizphil.instantmessenger.cache.WriteBehindQueue;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Messages per second with 32 concurrent senders against a stub database where every insert/insertMany costs one round trip
+// and only `connections` operations can be in flight at once (connection pool / server concurrency)
+// sync is one round trip per message, the batched modes share one round trip per batch (see WriteBehindQueue)
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.wizphil.instantmessenger.benchmark.MessagePersistenceBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class MessagePersistenceBenchmark {
+    // simulated round trip to mongo
+    @Param({"1000"})
+    private long roundTripMicros;
+
+    @Param({"8"})
+    private int connections;
+
+    private Semaphore database;
+    private WriteBehindQueue<String> writeBehind;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new Semaphore(connections);
+        writeBehind = new WriteBehindQueue<>("benchmark", this::insertMany, 2, 256, 0, 100_000, new SimpleMeterRegistry());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writeBehind.shutdown();
+    }
+
+    private void roundTrip() {
+        database.acquireUninterruptibly();
+        try {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+        } finally {
+            database.release();
+        }
+    }
+
+    private void insertMany(List<String> messages) {
+        roundTrip();
+    }
+
+    @Benchmark
+    public void sync() {
+        roundTrip();
+    }
+
+    @Benchmark
+    public void batchedAckAfterFlush() {
+        writeBehind.submit("message").join();
+    }
+
+    @Benchmark
+    public void batchedAckBeforeFlush() {
+        writeBehind.submit("message");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MessagePersistenceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,148 @@
+package com.wizphil.instantmessenger.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wizphil.instantmessenger.cache.UserCache;
+import com.wizphil.instantmessenger.cache.UserRoster;
+import com.wizphil.instantmessenger.persistence.user.User;
+import com.wizphil.instantmessenger.persistence.user.UserDetails;
+import com.wizphil.instantmessenger.persistence.user.UserSettings;
+import com.wizphil.instantmessenger.service.SerializedRoster;
+import com.wizphil.instantmessenger.service.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// 1000 logins at once, each loading the whole roster of a 20k user directory, on a pool the size of tomcat's default worker pool
+// perRequestJackson is the old GET /v1/user/info (the roster serialized for every request), serializedRoster serves the shared bytes,
+// serializedRosterWithStatusChurn changes someone's status before every login, so the roster is always out of date
+// Scores are the average time per login
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.wizphil.instantmessenger.benchmark.RosterBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class RosterBenchmark {
+    private static final int LOGINS = 1000;
+
+    @Param({"20000"})
+    private int userCount;
+
+    @Param({"200"})
+    private int workers;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final UserRoster userRoster = new UserRoster();
+    private final UserService userService = new UserService();
+    private String[] userIds;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<User> users = new ArrayList<>(userCount);
+        userIds = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            userIds[i] = String.format("%024x", i);
+            users.add(User.builder()
+                    .id(userIds[i])
+                    .userDetails(UserDetails.builder().username("user" + i).fullname("User Number " + i).extension(String.valueOf(1000 + i)).enabled(true).build())
+                    .userSettings(UserSettings.defaultSettings())
+                    .build());
+        }
+
+        UserCache userCache = mock(UserCache.class);
+        when(userCache.loadAll()).thenReturn(users);
+        userService.setUserCache(userCache);
+        userService.setUserRoster(userRoster);
+        userService.setObjectMapper(objectMapper);
+        userService.setRosterSnapshotMaxAgeMs(1000);
+        userService.loadAllOffline();
+
+        SerializedRoster roster = userService.getSerializedRoster();
+        System.out.println("roster json " + roster.getJson().length + " bytes, gzip " + roster.getGzip().length + " bytes");
+
+        executor = Executors.newFixedThreadPool(workers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void login(Callable<Integer> login, Blackhole blackhole) throws InterruptedException, ExecutionException {
+        List<Future<Integer>> responses = new ArrayList<>(LOGINS);
+        for (int i = 0; i < LOGINS; i++) {
+            responses.add(executor.submit(login));
+        }
+
+        for (Future<Integer> response : responses) {
+            blackhole.consume(response.get());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOGINS)
+    public void perRequestJackson(Blackhole blackhole) throws Exception {
+        login(() -> {
+            try {
+                // streamed to the response like the message converter does, so only the serialization counts
+                objectMapper.writeValue(OutputStream.nullOutputStream(), userService.getAllUserInfo());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return 0;
+        }, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOGINS)
+    public void serializedRoster(Blackhole blackhole) throws Exception {
+        login(() -> userService.getSerializedRoster().getGzip().length, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOGINS)
+    public void serializedRosterWithStatusChurn(Blackhole blackhole) throws Exception {
+        login(() -> {
+            userRoster.put(userIds[ThreadLocalRandom.current().nextInt(userIds.length)]);
+            return userService.getSerializedRoster().getGzip().length;
+        }, blackhole);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RosterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,106 @@
+package com.wizphil.instantmessenger.benchmark;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.persistence.user.UserSession;
+import com.wizphil.instantmessenger.persistence.user.UserStatus;
+import com.wizphil.instantmessenger.service.SessionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// The lookup half of sendMessageToUser (userId -> every UserSession of that user) with 32 threads sending at once
+// multimapAndLoadingCache is the old path (synchronized multimap, then a LoadingCache per sessionId), sessionRegistry is the new one
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.wizphil.instantmessenger.benchmark.SessionLookupBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class SessionLookupBenchmark {
+    @Param({"5000"})
+    private int userCount;
+
+    // most users are signed in from a desktop and a phone
+    @Param({"2"})
+    private int sessionsPerUser;
+
+    private final SetMultimap<String, String> userIdToSessionIds = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    private final LoadingCache<String, UserSession> sessionIdToUserSession = CacheBuilder.newBuilder().build(new CacheLoader<>() {
+        @Override
+        public UserSession load(String sessionId) {
+            return null;
+        }
+    });
+    private final SessionRegistry sessionRegistry = new SessionRegistry();
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        userIds = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            userIds[i] = "user" + i;
+            for (int j = 0; j < sessionsPerUser; j++) {
+                String sessionId = "session" + i + "-" + j;
+                UserSession userSession = UserSession.builder()
+                        .userId(userIds[i])
+                        .session(BenchmarkSessions.session(sessionId))
+                        .userStatus(UserStatus.builder().status(Status.Available).time(System.currentTimeMillis()).build())
+                        .build();
+
+                userIdToSessionIds.put(userIds[i], sessionId);
+                sessionIdToUserSession.put(sessionId, userSession);
+                sessionRegistry.add(userSession);
+            }
+        }
+    }
+
+    private String randomUserId() {
+        return userIds[ThreadLocalRandom.current().nextInt(userIds.length)];
+    }
+
+    @Benchmark
+    public void multimapAndLoadingCache(Blackhole blackhole) {
+        // exactly what the old sendMessageToUser did, it didn't hold the multimap's lock while iterating (which isn't safe either)
+        Set<String> sessionIds = userIdToSessionIds.get(randomUserId());
+        for (String sessionId : sessionIds) {
+            blackhole.consume(sessionIdToUserSession.getUnchecked(sessionId));
+        }
+    }
+
+    @Benchmark
+    public void sessionRegistry(Blackhole blackhole) {
+        for (UserSession userSession : sessionRegistry.getSessions(randomUserId())) {
+            blackhole.consume(userSession);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SessionLookupBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,89 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.persistence.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConversationRingTests {
+    private static ConversationRing<Message> ring(int capacity) {
+        return new ConversationRing<>(capacity, Message::getTime, Message::getId, message -> 100);
+    }
+
+    private static Message message(long time) {
+        return Message.builder().id("m" + time).conversationId("conversation").time(time).content("hi").build();
+    }
+
+    private static List<Long> times(List<Message> messages) {
+        return messages.stream().map(Message::getTime).collect(Collectors.toList());
+    }
+
+    @Test
+    public void servesNewestFirstFromWrites() {
+        ConversationRing<Message> ring = ring(10);
+        for (long time = 1; time <= 5; time++) {
+            ring.add(message(time));
+        }
+
+        assertThat(times(ring.before(Long.MAX_VALUE, 3))).containsExactly(5L, 4L, 3L);
+        assertThat(times(ring.before(4, 2))).containsExactly(3L, 2L);
+    }
+
+    @Test
+    public void cantAnswerShortPagesUntilComplete() {
+        ConversationRing<Message> ring = ring(10);
+        ring.add(message(5));
+        ring.add(message(6));
+
+        // older messages may still be in the database
+        assertThat(ring.before(Long.MAX_VALUE, 5)).isNull();
+
+        ring.merge(List.of(message(3), message(4), message(5)), true);
+
+        assertThat(times(ring.before(Long.MAX_VALUE, 5))).containsExactly(6L, 5L, 4L, 3L);
+        assertThat(ring.before(3, 5)).isEmpty();
+    }
+
+    @Test
+    public void overflowDropsOldestAndCompleteness() {
+        ConversationRing<Message> ring = ring(3);
+        ring.merge(List.of(message(1), message(2)), true);
+        ring.add(message(3));
+        ring.add(message(4));
+
+        assertThat(times(ring.before(Long.MAX_VALUE, 3))).containsExactly(4L, 3L, 2L);
+        assertThat(ring.before(Long.MAX_VALUE, 4)).isNull();
+        assertThat(ring.weight()).isEqualTo(3 * 100 + 3 * 16);
+    }
+
+    @Test
+    public void mergeKeepsNewestWhenOverCapacity() {
+        ConversationRing<Message> ring = ring(3);
+        ring.add(message(5));
+
+        ring.merge(List.of(message(2), message(3), message(4)), true);
+
+        assertThat(times(ring.before(Long.MAX_VALUE, 3))).containsExactly(5L, 4L, 3L);
+        // message 2 didn't fit, so the ring isn't the whole conversation anymore
+        assertThat(ring.before(3, 1)).isNull();
+    }
+
+    @Test
+    public void servesNewerMessagesFromItsOldestOn() {
+        ConversationRing<Message> ring = ring(10);
+        for (long time = 3; time <= 6; time++) {
+            ring.add(message(time));
+        }
+
+        assertThat(times(ring.after(3, 2))).containsExactly(4L, 5L);
+        assertThat(ring.after(6, 2)).isEmpty();
+        // messages between 2 and 3 may still be in the database
+        assertThat(ring.after(2, 2)).isNull();
+
+        ring.merge(List.of(message(1), message(2)), true);
+        assertThat(times(ring.after(0, 2))).containsExactly(1L, 2L);
+    }
+}
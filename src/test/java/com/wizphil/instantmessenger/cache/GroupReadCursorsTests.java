@@ -0,0 +1,163 @@
+package com.wizphil.instantmessenger.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GroupReadCursorsTests {
+    private final GroupReadCursors groupReadCursors = new GroupReadCursors();
+
+    @Test
+    public void unreadIsSeqMinusCursor() {
+        groupReadCursors.setMembers("group", List.of("phil", "tim"));
+        for (int i = 0; i < 5; i++) {
+            groupReadCursors.nextSeq("group");
+        }
+
+        assertThat(groupReadCursors.getUnread("group", "phil")).isEqualTo(5);
+
+        assertThat(groupReadCursors.advance("group", "phil", 3)).isTrue();
+        assertThat(groupReadCursors.getUnread("group", "phil")).isEqualTo(2);
+        assertThat(groupReadCursors.getUnread("group", "tim")).isEqualTo(5);
+
+        // cursors never move backwards or past the newest message
+        groupReadCursors.advance("group", "phil", 1);
+        assertThat(groupReadCursors.getUnread("group", "phil")).isEqualTo(2);
+        groupReadCursors.advance("group", "phil", 100);
+        assertThat(groupReadCursors.getUnread("group", "phil")).isEqualTo(0);
+        groupReadCursors.nextSeq("group");
+        assertThat(groupReadCursors.getUnread("group", "phil")).isEqualTo(1);
+    }
+
+    @Test
+    public void newMembersStartWithEverythingRead() {
+        groupReadCursors.setMembers("group", List.of("phil", "tim"));
+        groupReadCursors.nextSeq("group");
+        groupReadCursors.nextSeq("group");
+
+        groupReadCursors.setMembers("group", List.of("phil", "brian"));
+
+        assertThat(groupReadCursors.getUnread("group", "phil")).isEqualTo(2);
+        // brian took tim's slot, but not tim's cursor
+        assertThat(groupReadCursors.getUnread("group", "brian")).isEqualTo(0);
+        assertThat(groupReadCursors.advance("group", "tim", 2)).isFalse();
+        assertThat(groupReadCursors.getUnread("group", "tim")).isEqualTo(0);
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        List<String> members = List.of("a", "b", "c", "d", "e", "f", "g", "h", "i", "j");
+        groupReadCursors.setMembers("group", members);
+        groupReadCursors.nextSeq("group");
+
+        for (String member : members) {
+            assertThat(groupReadCursors.getUnread("group", member)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void snapshotRestoresCursorsOfCurrentMembers() throws IOException {
+        groupReadCursors.setMembers("group", List.of("phil", "tim"));
+        for (int i = 0; i < 5; i++) {
+            groupReadCursors.nextSeq("group");
+        }
+        groupReadCursors.advance("group", "phil", 3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        groupReadCursors.writeTo(new DataOutputStream(bytes));
+
+        GroupReadCursors restored = new GroupReadCursors();
+        // tim left while we were down
+        restored.setMembers("group", List.of("phil", "brian"));
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        // a message sent by brian after the snapshot, replayed twice
+        restored.replay("group", "brian", 6);
+        restored.replay("group", "brian", 6);
+
+        assertThat(restored.getSeq("group")).isEqualTo(6);
+        assertThat(restored.getUnread("group", "phil")).isEqualTo(3);
+        assertThat(restored.getUnread("group", "brian")).isEqualTo(0);
+        assertThat(restored.getUnread("group", "tim")).isEqualTo(0);
+    }
+
+    @Test
+    public void holdsRestoredCursorsUntilTheMembersAreKnown() throws IOException {
+        groupReadCursors.setMembers("group", List.of("phil", "tim"));
+        for (int i = 0; i < 5; i++) {
+            groupReadCursors.nextSeq("group");
+        }
+        groupReadCursors.advance("group", "phil", 3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        groupReadCursors.writeTo(new DataOutputStream(bytes));
+
+        // restored on startup before the groups are loaded
+        GroupReadCursors restored = new GroupReadCursors();
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        restored.replay("group", "tim", 6);
+        restored.setMembers("group", List.of("phil", "tim", "brian"));
+
+        assertThat(restored.getUnread("group", "phil")).isEqualTo(3);
+        assertThat(restored.getUnread("group", "tim")).isEqualTo(0);
+        assertThat(restored.getUnread("group", "brian")).isEqualTo(0);
+    }
+
+    @Test
+    public void failedWritesLeaveAGapThatIsNotUnread() {
+        groupReadCursors.setMembers("group", List.of("phil", "tim"));
+        AtomicLong sortIds = new AtomicLong(100);
+
+        assertThatThrownBy(() -> groupReadCursors.append("group", sortIds::incrementAndGet, (seq, sortId) -> {
+            throw new IllegalStateException("database is down");
+        })).isInstanceOf(IllegalStateException.class);
+        assertThat(groupReadCursors.getUnread("group", "tim")).isEqualTo(0);
+
+        // the failed write may have landed anyway, so its seq is never handed out again
+        long seq = groupReadCursors.append("group", sortIds::incrementAndGet, (written, sortId) -> written);
+        assertThat(seq).isEqualTo(2);
+        assertThat(groupReadCursors.getSeq("group")).isEqualTo(2);
+        assertThat(groupReadCursors.getUnread("group", "tim")).isEqualTo(1);
+    }
+
+    @Test
+    public void writesDoNotWaitForEachOtherButOnlyCountOnceEverythingBeforeThemIsWritten() throws Exception {
+        groupReadCursors.setMembers("group", List.of("phil", "tim"));
+        AtomicLong sortIds = new AtomicLong(100);
+        CountDownLatch slowWriteStarted = new CountDownLatch(1);
+        CountDownLatch releaseSlowWrite = new CountDownLatch(1);
+
+        CompletableFuture<long[]> slow = CompletableFuture.supplyAsync(() -> groupReadCursors.append("group", sortIds::incrementAndGet, (seq, sortId) -> {
+            slowWriteStarted.countDown();
+            try {
+                releaseSlowWrite.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return new long[]{seq, sortId};
+        }));
+        slowWriteStarted.await();
+
+        long[] fast = groupReadCursors.append("group", sortIds::incrementAndGet, (seq, sortId) -> new long[]{seq, sortId});
+        assertThat(fast).containsExactly(2, 102);
+        // seq 2 is written but seq 1 isn't yet
+        assertThat(groupReadCursors.getSeq("group")).isEqualTo(0);
+        assertThat(groupReadCursors.getUnread("group", "tim")).isEqualTo(0);
+
+        releaseSlowWrite.countDown();
+        assertThat(slow.get(5, TimeUnit.SECONDS)).containsExactly(1, 101);
+        assertThat(groupReadCursors.getSeq("group")).isEqualTo(2);
+        assertThat(groupReadCursors.getUnread("group", "tim")).isEqualTo(2);
+    }
+}
@@ -1,14 +1,17 @@
 package com.wizphil.instantmessenger.cache;
 
+import com.wizphil.instantmessenger.persistence.GroupMessage;
 import com.wizphil.instantmessenger.persistence.Message;
 import com.wizphil.instantmessenger.service.MessageService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Slice;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import java.util.List;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -57,6 +60,47 @@ public class MessageCacheTests {
         assertThat(result.getContent()).isEqualTo(message.getContent());
     }
 
+    @Test
+    public void getsMessagesInRequestedOrder() {
+        Message first = cache.createMessage(Message.builder()
+                .from(ALICE)
+                .to(BOB)
+                .conversationId(MessageService.getConversationId(ALICE, BOB))
+                .content("First.")
+                .time(System.currentTimeMillis() - 100L)
+                .deleted(false)
+                .build());
+
+        Message second = cache.createMessage(Message.builder()
+                .from(BOB)
+                .to(ALICE)
+                .conversationId(MessageService.getConversationId(BOB, ALICE))
+                .content("Second.")
+                .time(System.currentTimeMillis() - 50L)
+                .deleted(false)
+                .build());
+
+        List<Message> result = cache.getMessages(List.of(second.getId(), "missing", first.getId()));
+
+        assertThat(result).extracting(Message::getContent).containsExactly("Second.", "First.");
+    }
+
+    @Test
+    public void getsWholeGroupMessagesBeforeTime() {
+        String groupId = "whole-group";
+        cache.createGroupMessage(GroupMessage.builder()
+                .from(ALICE)
+                .groupId(groupId)
+                .content("Anyone here?")
+                .time(System.currentTimeMillis() - 100L)
+                .deleted(false)
+                .build());
+
+        Page<GroupMessage> conversation = cache.getGroupConversationBeforeTime(groupId, System.currentTimeMillis());
+
+        assertThat(conversation.getContent()).extracting(GroupMessage::getContent).containsExactly("Anyone here?");
+    }
+
     @Test
     public void getsConversationBeforeTime() {
         String user1Id = "user1Id";
@@ -97,6 +141,30 @@ public class MessageCacheTests {
         assertThat(conversation.getTotalElements()).isEqualTo(2);
     }
 
+    @Test
+    public void slicesConversationBothWays() {
+        String conversationId = MessageService.getConversationId(ALICE, "slices");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            cache.createMessage(Message.builder()
+                    .from(ALICE)
+                    .to("slices")
+                    .conversationId(conversationId)
+                    .content("Message " + i)
+                    .time(now - 1000L + i)
+                    .deleted(false)
+                    .build());
+        }
+
+        Slice<Message> newest = cache.getConversationBefore(conversationId, Long.MAX_VALUE, 2);
+        assertThat(newest.getContent()).extracting(Message::getContent).containsExactly("Message 4", "Message 3");
+        assertThat(newest.hasNext()).isTrue();
+
+        Slice<Message> oldest = cache.getConversationAfter(conversationId, newest.getContent().get(1).getSortId(), 5);
+        assertThat(oldest.getContent()).extracting(Message::getContent).containsExactly("Message 4");
+        assertThat(oldest.hasNext()).isFalse();
+    }
+
     @Test
     public void getsUnreadMessageCountsAndMarksAsSeen() {
         String phil = "phil";
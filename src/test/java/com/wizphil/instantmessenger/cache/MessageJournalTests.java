@@ -0,0 +1,140 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.persistence.GroupMessage;
+import com.wizphil.instantmessenger.persistence.Message;
+import com.wizphil.instantmessenger.repository.GroupMessageRepository;
+import com.wizphil.instantmessenger.repository.MessageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MessageJournalTests {
+    @TempDir
+    Path directory;
+
+    private final MessageRepository messageRepository = mock(MessageRepository.class);
+    private final GroupMessageRepository groupMessageRepository = mock(GroupMessageRepository.class);
+    private final List<Message> shippedMessages = Collections.synchronizedList(new ArrayList<>());
+
+    private MessageJournal journal(int segmentSize) throws Exception {
+        MessageJournal journal = new MessageJournal();
+        journal.setMessageRepository(messageRepository);
+        journal.setGroupMessageRepository(groupMessageRepository);
+        journal.setMeterRegistry(new SimpleMeterRegistry());
+        journal.setPersistenceMode("journal");
+        journal.setDirectoryName(directory.toString());
+        journal.setSegmentSize(segmentSize);
+        journal.setShipBatchSize(16);
+        journal.init();
+        return journal;
+    }
+
+    private static Message message(int i) {
+        return Message.builder().id("id" + i).from("phil").to("tim").conversationId("philtim").content("message " + i).time((long) i).deleted(false).build();
+    }
+
+    private void shipMessagesSuccessfully() {
+        doAnswer(invocation -> {
+            invocation.<Iterable<Message>>getArgument(0).forEach(shippedMessages::add);
+            return null;
+        }).when(messageRepository).insert(anyIterable());
+    }
+
+    private long segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("segment-")).count();
+        }
+    }
+
+    @Test
+    public void shipsJournaledMessagesAndReclaimsSegments() throws Exception {
+        shipMessagesSuccessfully();
+        MessageJournal journal = journal(1024);
+
+        for (int i = 0; i < 50; i++) {
+            journal.append(message(i)).join();
+        }
+        journal.append(GroupMessage.builder().id("group").groupId("group").from("phil").content("hi").time(1L).deleted(false).build()).join();
+
+        verify(groupMessageRepository, timeout(5000)).insert(anyIterable());
+        assertThat(shippedMessages).hasSize(50);
+        assertThat(shippedMessages).extracting(Message::getContent).startsWith("message 0", "message 1");
+        journal.destroy();
+
+        // 50 messages don't fit in one 1kb segment, everything before the last checkpoint was deleted
+        assertThat(segmentFiles()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void findsAcknowledgedMessagesByIdUntilTheyAreShipped() throws Exception {
+        AtomicBoolean mongoDown = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (mongoDown.get()) {
+                throw new IllegalStateException("mongo is down");
+            }
+
+            invocation.<Iterable<Message>>getArgument(0).forEach(shippedMessages::add);
+            return null;
+        }).when(messageRepository).insert(anyIterable());
+        MessageJournal journal = journal(4096);
+
+        journal.append(message(1)).join();
+        assertThat(journal.getUnshippedMessage("id1")).isEqualTo(message(1));
+        assertThat(journal.getUnshippedGroupMessage("id1")).isNull();
+
+        mongoDown.set(false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journal.getUnshippedMessage("id1") != null) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+        // dropped from the journal's index only once mongo has it
+        assertThat(shippedMessages).extracting(Message::getId).containsExactly("id1");
+        journal.destroy();
+    }
+
+    @Test
+    public void replaysUnshippedMessagesOnStartup() throws Exception {
+        when(messageRepository.insert(anyIterable())).thenThrow(new IllegalStateException("mongo is down"));
+        MessageJournal journal = journal(4096);
+        for (int i = 0; i < 10; i++) {
+            journal.append(message(i)).join();
+        }
+        journal.destroy();
+
+        MessageRepository recovered = mock(MessageRepository.class);
+        doAnswer(invocation -> {
+            invocation.<Iterable<Message>>getArgument(0).forEach(shippedMessages::add);
+            return null;
+        }).when(recovered).insert(anyIterable());
+        MessageJournal restarted = new MessageJournal();
+        restarted.setMessageRepository(recovered);
+        restarted.setGroupMessageRepository(groupMessageRepository);
+        restarted.setMeterRegistry(new SimpleMeterRegistry());
+        restarted.setPersistenceMode("journal");
+        restarted.setDirectoryName(directory.toString());
+        restarted.setSegmentSize(4096);
+        restarted.setShipBatchSize(16);
+        restarted.init();
+
+        // shipped before init returns, beans that read mongo on startup see them
+        assertThat(shippedMessages).extracting(Message::getId).containsExactly("id0", "id1", "id2", "id3", "id4", "id5", "id6", "id7", "id8", "id9");
+        restarted.destroy();
+    }
+}
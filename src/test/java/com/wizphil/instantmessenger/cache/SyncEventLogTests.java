@@ -0,0 +1,63 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.dto.SyncEventDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SyncEventLogTests {
+    private static SyncEventLog log(int capacity) {
+        SyncEventLog syncEventLog = new SyncEventLog();
+        syncEventLog.setCapacity(capacity);
+        syncEventLog.init();
+        return syncEventLog;
+    }
+
+    @Test
+    public void returnsOnlyEventsTheUserCanSee() {
+        SyncEventLog syncEventLog = log(10);
+        syncEventLog.append(MessageCategory.DirectMessage, "phil to tim", List.of("phil", "tim"));
+        syncEventLog.append(MessageCategory.NewUser, "brian", null);
+        syncEventLog.append(MessageCategory.DirectMessage, "brian to tim", List.of("brian", "tim"));
+
+        SyncEventLog.Batch batch = syncEventLog.read("phil", 0, 10);
+
+        assertThat(batch.getEvents()).extracting(SyncEventDTO::getPayload).containsExactly("phil to tim", "brian");
+        assertThat(batch.getLastSeq()).isEqualTo(3);
+        assertThat(batch.isHasMore()).isFalse();
+        assertThat(syncEventLog.read("phil", 3, 10).getEvents()).isEmpty();
+    }
+
+    @Test
+    public void stopsAtTheLimit() {
+        SyncEventLog syncEventLog = log(10);
+        for (int i = 1; i <= 5; i++) {
+            syncEventLog.append(MessageCategory.NewUser, "user" + i, null);
+        }
+
+        SyncEventLog.Batch first = syncEventLog.read("phil", 0, 2);
+        assertThat(first.getEvents()).extracting(SyncEventDTO::getSeq).containsExactly(1L, 2L);
+        assertThat(first.isHasMore()).isTrue();
+
+        SyncEventLog.Batch second = syncEventLog.read("phil", first.getLastSeq(), 10);
+        assertThat(second.getEvents()).extracting(SyncEventDTO::getSeq).containsExactly(3L, 4L, 5L);
+        assertThat(second.isHasMore()).isFalse();
+    }
+
+    @Test
+    public void cursorsOlderThanTheLogCantBeServed() {
+        SyncEventLog syncEventLog = log(3);
+        for (int i = 1; i <= 5; i++) {
+            syncEventLog.append(MessageCategory.NewUser, "user" + i, null);
+        }
+
+        // events 1 and 2 were overwritten
+        assertThat(syncEventLog.read("phil", 1, 10)).isNull();
+        assertThat(syncEventLog.read("phil", 2, 10).getEvents()).extracting(SyncEventDTO::getPayload).containsExactly("user3", "user4", "user5");
+        // from the future, or from another run
+        assertThat(syncEventLog.read("phil", 6, 10)).isNull();
+    }
+}
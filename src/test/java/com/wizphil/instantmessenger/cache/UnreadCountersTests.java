@@ -0,0 +1,93 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.dto.UnreadCountDTO;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UnreadCountersTests {
+    private final UnreadCounters unreadCounters = new UnreadCounters();
+
+    @Test
+    public void countsPerSenderWithOldestTime() {
+        unreadCounters.increment("phil", "tim", 200, 200);
+        unreadCounters.increment("phil", "tim", 300, 300);
+        unreadCounters.increment("phil", "brian", 100, 100);
+
+        assertThat(unreadCounters.getCounts("phil")).containsOnly(Map.entry("tim", 2L), Map.entry("brian", 1L));
+        assertThat(unreadCounters.getSummary("phil")).containsOnly(
+                Map.entry("tim", new UnreadCountDTO(2, 200)),
+                Map.entry("brian", new UnreadCountDTO(1, 100)));
+        assertThat(unreadCounters.getCounts("tim")).isEmpty();
+    }
+
+    @Test
+    public void seeingResetsCounts() {
+        unreadCounters.increment("phil", "tim", 200, 200);
+        unreadCounters.increment("phil", "brian", 100, 100);
+
+        unreadCounters.clear("phil", "tim", 300);
+        assertThat(unreadCounters.getCounts("phil")).containsOnlyKeys("brian");
+
+        unreadCounters.increment("phil", "tim", 400, 400);
+        assertThat(unreadCounters.getSummary("phil").get("tim")).isEqualTo(new UnreadCountDTO(1, 400));
+
+        unreadCounters.clearAll("phil", 500);
+        assertThat(unreadCounters.getCounts("phil")).isEmpty();
+    }
+
+    @Test
+    public void seeingOlderMessagesKeepsNewerCounts() {
+        // tim's message 300 is counted before phil's own message 200 clears the conversation with its sortId
+        unreadCounters.increment("phil", "tim", 300, 300);
+        unreadCounters.clear("phil", "tim", 200);
+        assertThat(unreadCounters.getCounts("phil")).containsOnly(Map.entry("tim", 1L));
+
+        unreadCounters.clearAll("phil", 250);
+        assertThat(unreadCounters.getCounts("phil")).containsOnly(Map.entry("tim", 1L));
+
+        unreadCounters.clear("phil", "tim", 300);
+        assertThat(unreadCounters.getCounts("phil")).isEmpty();
+    }
+
+    @Test
+    public void replayingCountedMessagesDoesNothing() {
+        unreadCounters.increment("phil", "tim", 200, 200);
+        unreadCounters.increment("phil", "tim", 300, 300);
+        unreadCounters.clear("phil", "brian", 400);
+
+        unreadCounters.replayIncrement("phil", "tim", 200, 200);
+        unreadCounters.replayIncrement("phil", "tim", 300, 300);
+        unreadCounters.replayIncrement("phil", "brian", 350, 350);
+        unreadCounters.replayIncrement("phil", "tim", 600, 600);
+        unreadCounters.replayIncrement("phil", "brian", 700, 700);
+
+        assertThat(unreadCounters.getSummary("phil")).containsOnly(
+                Map.entry("tim", new UnreadCountDTO(3, 200)),
+                Map.entry("brian", new UnreadCountDTO(1, 700)));
+    }
+
+    @Test
+    public void snapshotRoundTrips() throws IOException {
+        unreadCounters.increment("phil", "tim", 200, 200);
+        unreadCounters.increment("phil", "tim", 300, 300);
+        unreadCounters.clear("tim", "phil", 300);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        unreadCounters.writeTo(new DataOutputStream(bytes));
+        UnreadCounters restored = new UnreadCounters();
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(restored.getSummary("phil")).containsOnly(Map.entry("tim", new UnreadCountDTO(2, 200)));
+        // the seen entry survives too, so replaying tim's message doesn't count it for him
+        restored.replayIncrement("tim", "phil", 250, 250);
+        assertThat(restored.getCounts("tim")).isEmpty();
+    }
+}
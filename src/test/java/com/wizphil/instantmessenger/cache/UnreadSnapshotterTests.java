@@ -0,0 +1,112 @@
+package com.wizphil.instantmessenger.cache;
+
+import com.wizphil.instantmessenger.persistence.Message;
+import com.wizphil.instantmessenger.repository.GroupMessageRepository;
+import com.wizphil.instantmessenger.repository.MessageRepository;
+import com.wizphil.instantmessenger.service.MessageIdGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UnreadSnapshotterTests {
+    @TempDir
+    Path directory;
+
+    private final GroupMessageRepository groupMessageRepository = mock(GroupMessageRepository.class);
+
+    private MessageJournal journal(MessageRepository messageRepository) throws Exception {
+        MessageJournal journal = new MessageJournal();
+        journal.setMessageRepository(messageRepository);
+        journal.setGroupMessageRepository(groupMessageRepository);
+        journal.setMeterRegistry(new SimpleMeterRegistry());
+        journal.setPersistenceMode("journal");
+        journal.setDirectoryName(directory.resolve("journal").toString());
+        journal.setSegmentSize(4096);
+        journal.setShipBatchSize(16);
+        journal.init();
+        return journal;
+    }
+
+    private UnreadSnapshotter snapshotter(MessageCache messageCache, MessageRepository messageRepository) {
+        UnreadSnapshotter snapshotter = new UnreadSnapshotter();
+        snapshotter.setMessageCache(messageCache);
+        snapshotter.setGroupReadCursors(new GroupReadCursors());
+        snapshotter.setMessageRepository(messageRepository);
+        snapshotter.setGroupMessageRepository(groupMessageRepository);
+        snapshotter.setSnapshotFile(directory.resolve("unread.snapshot").toString());
+        snapshotter.setIntervalMs(30_000);
+        snapshotter.setReplayMarginMs(60_000);
+        snapshotter.setPruneIntervalMs(60_000);
+        snapshotter.init();
+        return snapshotter;
+    }
+
+    private static Message message(int i) {
+        long time = System.currentTimeMillis();
+        return Message.builder().id(new ObjectId().toHexString()).from("phil").to("tim").conversationId("philtim").content("message " + i)
+                .time(time).sortId(MessageIdGenerator.firstIdAt(time) + i).deleted(false).build();
+    }
+
+    @Test
+    public void restartsWithMessagesThatWereJournaledButNotShipped() throws Exception {
+        MessageRepository downRepository = mock(MessageRepository.class);
+        when(downRepository.insert(anyIterable())).thenThrow(new IllegalStateException("mongo is down"));
+        snapshotter(new MessageCache(), downRepository).snapshot();
+
+        // acknowledged from the journal after the snapshot, mongo never got them before the crash
+        MessageJournal journal = journal(downRepository);
+        for (int i = 0; i < 3; i++) {
+            journal.append(message(i)).join();
+        }
+        journal.destroy();
+
+        List<Message> mongo = Collections.synchronizedList(new ArrayList<>());
+        MessageRepository recovered = mock(MessageRepository.class);
+        doAnswer(invocation -> {
+            invocation.<Iterable<Message>>getArgument(0).forEach(mongo::add);
+            return null;
+        }).when(recovered).insert(anyIterable());
+        when(recovered.streamCreatedAfter(any())).thenAnswer(invocation ->
+                new ArrayList<>(mongo).stream().filter(message -> new ObjectId(message.getId()).compareTo(invocation.getArgument(0)) > 0));
+
+        // started in dependency order, the journal ships its replay before the snapshot is caught up from mongo
+        MessageJournal restarted = journal(recovered);
+        MessageCache messageCache = new MessageCache();
+        snapshotter(messageCache, recovered);
+        restarted.destroy();
+
+        assertThat(messageCache.getUnreadMessageCounts("tim")).isEqualTo(Map.of("phil", 3L));
+    }
+
+    @Test
+    public void prunesSeenEntriesWithSnapshotsDisabled() throws Exception {
+        MessageCache messageCache = new MessageCache();
+        UnreadCounters unreadCounters = messageCache.getUnreadCounters();
+        UnreadSnapshotter snapshotter = snapshotter(messageCache, mock(MessageRepository.class));
+        snapshotter.setIntervalMs(0);
+        snapshotter.setPruneIntervalMs(10);
+        unreadCounters.clear("tim", "phil", MessageIdGenerator.firstIdAt(2000));
+
+        snapshotter.start();
+        Thread.sleep(200);
+        snapshotter.destroy();
+
+        // the seen entry would have skipped this older message, it's gone so the message counts
+        unreadCounters.replayIncrement("tim", "phil", MessageIdGenerator.firstIdAt(1000), 1000);
+        assertThat(unreadCounters.getCounts("tim")).isEqualTo(Map.of("phil", 1L));
+    }
+}
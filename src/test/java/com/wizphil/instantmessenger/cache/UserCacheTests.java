@@ -61,4 +61,35 @@ public class UserCacheTests {
         assertThat(bob).isNotNull();
         assertThat(bob.getUserDetails().getFullname()).isEqualTo(newName);
     }
+
+    @Test
+    public void findsUsernameCreatedAfterAMiss() {
+        assertThat(cache.isExistingUsername("dave")).isFalse();
+        assertThat(cache.getByUsername("dave")).isNull();
+
+        User dave = cache.createUser(User.builder()
+                .userSettings(UserSettings.defaultSettings())
+                .userDetails(UserDetails.builder().username("dave").fullname("Dave Lister").enabled(true).extension("RD").build())
+                .build());
+
+        assertThat(cache.isExistingUsername("dave")).isTrue();
+        assertThat(cache.getByUsername("dave").getId()).isEqualTo(dave.getId());
+    }
+
+    @Test
+    public void findsRenamedUserAfterLoadAll() {
+        cache.loadAll();
+
+        User erin = cache.createUser(User.builder()
+                .userSettings(UserSettings.defaultSettings())
+                .userDetails(UserDetails.builder().username("erin").fullname("Erin Hannon").enabled(true).extension("DM").build())
+                .build());
+        assertThat(cache.getByUsername("kelly")).isNull();
+
+        erin.getUserDetails().setUsername("kelly");
+        cache.updateUser(erin);
+
+        assertThat(cache.getByUsername("kelly").getId()).isEqualTo(erin.getId());
+        assertThat(cache.getByUsername("nobody")).isNull();
+    }
 }
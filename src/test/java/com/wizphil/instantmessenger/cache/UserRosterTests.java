@@ -0,0 +1,42 @@
+package com.wizphil.instantmessenger.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UserRosterTests {
+    private final UserRoster userRoster = new UserRoster();
+
+    @Test
+    public void changesSinceAVersionAreEachUserOnce() {
+        userRoster.load(List.of("brian", "phil", "tim"));
+        long loaded = userRoster.getVersion();
+        assertThat(userRoster.changedSince(loaded)).isEmpty();
+
+        userRoster.put("tim");
+        long afterTim = userRoster.getVersion();
+        userRoster.put("phil");
+        userRoster.put("tim");
+        userRoster.remove("brian");
+
+        assertThat(userRoster.getVersion()).isGreaterThan(afterTim);
+        assertThat(userRoster.changedSince(loaded)).containsExactly("phil", "tim", "brian");
+        assertThat(userRoster.changedSince(afterTim)).containsExactly("phil", "tim", "brian");
+        assertThat(userRoster.contains("brian")).isFalse();
+        // from before this roster existed
+        assertThat(userRoster.changedSince(0)).isNull();
+    }
+
+    @Test
+    public void pagesInIdOrder() {
+        userRoster.load(List.of("tim", "brian", "phil"));
+        userRoster.put("alice");
+
+        assertThat(userRoster.page(null, 2)).containsExactly("alice", "brian");
+        assertThat(userRoster.page("brian", 2)).containsExactly("phil", "tim");
+        // the cursor's user doesn't have to exist anymore
+        assertThat(userRoster.page("bz", 5)).containsExactly("phil", "tim");
+    }
+}
@@ -0,0 +1,86 @@
+package com.wizphil.instantmessenger.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class WriteBehindQueueTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void writesSubmittedItemsInBatches() {
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test", items -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(new ArrayList<>(items));
+        }, 1, 10, 1000, 1000, meterRegistry);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            futures.add(queue.submit(i));
+        }
+
+        release.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        queue.shutdown();
+
+        List<Integer> written = new ArrayList<>();
+        batches.forEach(written::addAll);
+        assertThat(written).hasSize(25).isSorted();
+        assertThat(batches).allSatisfy(batch -> assertThat(batch.size()).isLessThanOrEqualTo(10));
+        assertThat(batches.size()).isLessThan(25);
+        assertThat(meterRegistry.get("message.persistence.batch.size").summary().totalAmount()).isEqualTo(25);
+    }
+
+    @Test
+    public void flushesAPartialBatchAfterTheMaxDelay() throws Exception {
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test", items -> { }, 1, 100, 5, 1000, meterRegistry);
+
+        queue.submit(1).get(5, TimeUnit.SECONDS);
+        queue.shutdown();
+    }
+
+    @Test
+    public void retriesBeforeFailingTheBatch() {
+        AtomicInteger attempts = new AtomicInteger();
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test", items -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("database is down");
+        }, 1, 10, 0, 1000, meterRegistry);
+
+        CompletableFuture<Void> written = queue.submit(1);
+
+        assertThatThrownBy(written::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(attempts.get()).isEqualTo(3);
+        queue.shutdown();
+    }
+
+    @Test
+    public void resendsAPartlyWrittenBatchWithTheResendSink() throws Exception {
+        List<Integer> saved = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<>("test", items -> {
+            throw new DuplicateKeyException("first item was already written");
+        }, saved::addAll, 1, 10, 0, 1000, meterRegistry);
+
+        queue.submit(1).get(5, TimeUnit.SECONDS);
+
+        assertThat(saved).containsExactly(1);
+        queue.shutdown();
+    }
+}
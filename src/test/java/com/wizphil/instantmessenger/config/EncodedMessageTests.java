@@ -0,0 +1,70 @@
+package com.wizphil.instantmessenger.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wizphil.instantmessenger.dto.GroupUserDTO;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.WireFormat;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncodedMessageTests {
+    private static final GroupUserDTO GROUP_USER = GroupUserDTO.builder().groupId("group").userId("user").build();
+
+    @Test
+    public void encodesV1ContentAsJsonString() {
+        EncodedMessage message = EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.GroupTypingPing, GROUP_USER));
+
+        assertThat(message.getText(WireFormat.JsonV1))
+                .isEqualTo("{\"category\":\"GroupTypingPing\",\"content\":\"{\\\"userId\\\":\\\"user\\\",\\\"groupId\\\":\\\"group\\\"}\"}");
+    }
+
+    @Test
+    public void encodesV2ContentAsJsonObject() {
+        EncodedMessage message = EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.GroupTypingPing, GROUP_USER));
+
+        assertThat(message.getText(WireFormat.JsonV2))
+                .isEqualTo("{\"version\":2,\"category\":\"GroupTypingPing\",\"content\":{\"userId\":\"user\",\"groupId\":\"group\"}}");
+    }
+
+    @Test
+    public void encodesEachFormatOnce() {
+        EncodedMessage message = EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.GroupTypingPing, GROUP_USER));
+
+        assertThat(message.getText(WireFormat.JsonV2)).isSameAs(message.getText(WireFormat.JsonV2));
+        assertThat(message.getText(WireFormat.JsonV1)).isSameAs(message.getText(WireFormat.JsonV1));
+    }
+
+    @Test
+    public void encodesBinaryFormatsAsV2Envelope() throws IOException {
+        EncodedMessage message = EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.GroupTypingPing, GROUP_USER));
+
+        assertBinaryEnvelope(WebSocketSmileEncoder.objectMapper, message.getBinary(WireFormat.SmileV2));
+        assertBinaryEnvelope(WebSocketCborEncoder.objectMapper, message.getBinary(WireFormat.CborV2));
+    }
+
+    @Test
+    public void givesEachSessionItsOwnBinaryBuffer() {
+        EncodedMessage message = EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.GroupTypingPing, GROUP_USER));
+
+        ByteBuffer first = message.getBinary(WireFormat.SmileV2);
+        first.position(first.limit());
+
+        assertThat(message.getBinary(WireFormat.SmileV2).remaining()).isEqualTo(first.limit());
+    }
+
+    private static void assertBinaryEnvelope(ObjectMapper objectMapper, ByteBuffer binary) throws IOException {
+        byte[] bytes = new byte[binary.remaining()];
+        binary.get(bytes);
+        JsonNode envelope = objectMapper.readTree(bytes);
+
+        assertThat(envelope.get("version").asInt()).isEqualTo(2);
+        assertThat(envelope.get("category").asText()).isEqualTo("GroupTypingPing");
+        assertThat(envelope.get("content").get("groupId").asText()).isEqualTo("group");
+    }
+}
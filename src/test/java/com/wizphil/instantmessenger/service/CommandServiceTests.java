@@ -0,0 +1,93 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.config.WebSocketCommandDecoder;
+import com.wizphil.instantmessenger.dto.CommandDTO;
+import com.wizphil.instantmessenger.dto.CommandReplyDTO;
+import com.wizphil.instantmessenger.dto.MessageDTO;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.CommandType;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.exceptions.UserNotInGroupException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CommandServiceTests {
+    private final MessageService messageService = mock(MessageService.class);
+    private final UserService userService = mock(UserService.class);
+    private final SessionService sessionService = mock(SessionService.class);
+    private final CommandService commandService = new CommandService();
+
+    @BeforeEach
+    public void setUp() {
+        commandService.setMessageService(messageService);
+        commandService.setUserService(userService);
+        commandService.setSessionService(sessionService);
+    }
+
+    @Test
+    public void sendsDirectMessagesAsTheSocketOwner() throws Exception {
+        when(messageService.sendPrivateMessage(any())).thenReturn("message-id");
+        CommandDTO command = WebSocketCommandDecoder.decode(
+                "{\"requestId\":\"1\",\"type\":\"SendDirectMessage\",\"userId\":\"tim\",\"content\":\"hi\",\"from\":\"someone-else\"}");
+
+        commandService.handle("phil", "session", command);
+
+        ArgumentCaptor<MessageDTO> message = ArgumentCaptor.forClass(MessageDTO.class);
+        verify(messageService).sendPrivateMessage(message.capture());
+        assertThat(message.getValue().getFrom()).isEqualTo("phil");
+        assertThat(message.getValue().getTo()).isEqualTo("tim");
+
+        ArgumentCaptor<MessageWrapperDTO> reply = ArgumentCaptor.forClass(MessageWrapperDTO.class);
+        verify(sessionService).sendMessageToSession(eq("session"), reply.capture());
+        assertThat(reply.getValue().getCategory()).isEqualTo(MessageCategory.CommandReply);
+        CommandReplyDTO replyDTO = (CommandReplyDTO) reply.getValue().getPayload();
+        assertThat(replyDTO.getRequestId()).isEqualTo("1");
+        assertThat(replyDTO.isSuccess()).isTrue();
+        assertThat(replyDTO.getResult()).isEqualTo("message-id");
+    }
+
+    @Test
+    public void doesNotReplyToSuccessfulCommandsWithoutARequestId() {
+        commandService.handle("phil", "session", CommandDTO.builder().type(CommandType.Typing).userId("tim").build());
+
+        verify(messageService).sendIsTypingToUser("phil", "tim");
+        verify(sessionService, never()).sendMessageToSession(any(), any());
+    }
+
+    @Test
+    public void repliesWithTheRestStatusWhenACommandFails() {
+        doThrow(new UserNotInGroupException("group", "phil")).when(messageService).sendIsTypingToGroup("phil", "group");
+
+        CommandReplyDTO reply = commandService.execute("phil", "session", CommandDTO.builder().type(CommandType.Typing).groupId("group").build());
+
+        assertThat(reply.isSuccess()).isFalse();
+        assertThat(reply.getStatus()).isEqualTo(new UserNotInGroupException("group", "phil").getStatus().value());
+    }
+
+    @Test
+    public void setsStatusForTheCommandsSession() {
+        CommandReplyDTO reply = commandService.execute("phil", "session", CommandDTO.builder().requestId("2").type(CommandType.SetStatus).status(Status.Busy).build());
+
+        verify(userService).setStatus("phil", "session", Status.Busy);
+        assertThat(reply.isSuccess()).isTrue();
+    }
+
+    @Test
+    public void marksGroupMessagesAsSeenUpToSeq() {
+        commandService.handle("phil", "session", CommandDTO.builder().type(CommandType.MarkSeen).groupId("group").seq(42L).build());
+
+        verify(messageService).markGroupMessagesAsSeen("phil", "group", 42L);
+        verify(messageService, never()).markMessageAsSeen(any(), any());
+    }
+}
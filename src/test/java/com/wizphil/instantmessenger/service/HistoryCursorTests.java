@@ -0,0 +1,27 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HistoryCursorTests {
+    @Test
+    public void roundTripsSortIds() {
+        for (long sortId : new long[] {0, 1, MessageIdGenerator.firstIdAt(System.currentTimeMillis()), Long.MAX_VALUE}) {
+            String cursor = HistoryCursor.encode(sortId);
+
+            assertThat(cursor).matches("[A-Za-z0-9_-]+");
+            assertThat(HistoryCursor.decode(cursor)).isEqualTo(sortId);
+        }
+    }
+
+    @Test
+    public void rejectsCursorsWeDidntMake() {
+        assertThatThrownBy(() -> HistoryCursor.decode("not a cursor")).isInstanceOf(InvalidEntityException.class);
+        assertThatThrownBy(() -> HistoryCursor.decode("AAAA")).isInstanceOf(InvalidEntityException.class);
+        // right length, unknown version
+        assertThatThrownBy(() -> HistoryCursor.decode("AgAAAAAAAAAA")).isInstanceOf(InvalidEntityException.class);
+    }
+}
@@ -0,0 +1,66 @@
+package com.wizphil.instantmessenger.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MessageIdGeneratorTests {
+    private static MessageIdGenerator generator(long nodeId) {
+        MessageIdGenerator messageIdGenerator = new MessageIdGenerator();
+        messageIdGenerator.setNodeId(nodeId);
+        messageIdGenerator.init();
+        return messageIdGenerator;
+    }
+
+    @Test
+    public void idsIncreaseAndCarryTheirTime() {
+        MessageIdGenerator messageIdGenerator = generator(7);
+        long before = System.currentTimeMillis();
+
+        long previous = 0;
+        for (int i = 0; i < 100_000; i++) {
+            long id = messageIdGenerator.nextId();
+            assertThat(id).isGreaterThan(previous);
+            previous = id;
+        }
+
+        // 100k ids is more than 4096 a millisecond, so the last ones may be borrowed from a little in the future
+        assertThat(MessageIdGenerator.timeOf(previous)).isBetween(before, System.currentTimeMillis() + 100);
+        assertThat(previous).isGreaterThanOrEqualTo(MessageIdGenerator.firstIdAt(before));
+    }
+
+    @Test
+    public void idsAreUniqueAcrossThreadsAndNodes() throws InterruptedException {
+        MessageIdGenerator node1 = generator(1);
+        MessageIdGenerator node2 = generator(2);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            MessageIdGenerator messageIdGenerator = i % 2 == 0 ? node1 : node2;
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 20_000; j++) {
+                    ids.add(messageIdGenerator.nextId());
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(ids).hasSize(8 * 20_000);
+    }
+
+    @Test
+    public void rejectsNodeIdsThatDontFit() {
+        assertThatThrownBy(() -> generator(1024)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,77 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.dto.UserStatusDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.persistence.user.UserStatus;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class PresenceCoalescerTests {
+    private final SessionService sessionService = mock(SessionService.class);
+
+    private PresenceCoalescer coalescer(long windowMs) {
+        PresenceCoalescer coalescer = new PresenceCoalescer();
+        coalescer.setSessionService(sessionService);
+        coalescer.setWindowMs(windowMs);
+        return coalescer;
+    }
+
+    private static UserStatusDTO status(String id, Status status) {
+        return UserStatus.toUserStatusDTO(id, UserStatus.builder().status(status).time(System.currentTimeMillis()).build());
+    }
+
+    @Test
+    public void sendsOneBatchWithTheLatestStatusPerUser() {
+        PresenceCoalescer coalescer = coalescer(10_000);
+        coalescer.init();
+
+        coalescer.publish(status("phil", Status.Available));
+        coalescer.publish(status("tim", Status.Available));
+        coalescer.publish(status("phil", Status.Busy));
+        verify(sessionService, never()).sendBatchToWatchers(any(), any(), any());
+
+        coalescer.flush();
+        coalescer.destroy();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<UserStatusDTO>> captor = ArgumentCaptor.forClass(List.class);
+        verify(sessionService).sendBatchToWatchers(eq(MessageCategory.PresenceBatch), captor.capture(), any());
+
+        List<UserStatusDTO> batch = captor.getValue();
+        assertThat(batch).hasSize(2);
+        assertThat(batch).filteredOn(userStatusDTO -> userStatusDTO.getId().equals("phil"))
+                .extracting(userStatusDTO -> userStatusDTO.getUserStatus().getStatus())
+                .containsExactly(Status.Busy);
+    }
+
+    @Test
+    public void skipsEmptyWindows() {
+        PresenceCoalescer coalescer = coalescer(10_000);
+        coalescer.init();
+
+        coalescer.flush();
+        coalescer.destroy();
+
+        verify(sessionService, never()).sendBatchToWatchers(any(), any(), any());
+    }
+
+    @Test
+    public void sendsImmediatelyWhenDisabled() {
+        PresenceCoalescer coalescer = coalescer(0);
+        coalescer.init();
+
+        coalescer.publish(status("phil", Status.Away));
+
+        verify(sessionService).sendMessageToWatchers(eq("phil"), any());
+    }
+}
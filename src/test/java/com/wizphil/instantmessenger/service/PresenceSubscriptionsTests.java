@@ -0,0 +1,42 @@
+package com.wizphil.instantmessenger.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PresenceSubscriptionsTests {
+    private final PresenceSubscriptions subscriptions = new PresenceSubscriptions();
+
+    @Test
+    public void indexesWatchersByWatchedUser() {
+        subscriptions.setInterests("session1", Set.of("phil", "tim"));
+        subscriptions.setInterests("session2", Set.of("phil"));
+
+        assertThat(subscriptions.hasInterests("session1")).isTrue();
+        assertThat(subscriptions.hasInterests("session3")).isFalse();
+        assertThat(subscriptions.getWatchers("phil")).containsExactlyInAnyOrder("session1", "session2");
+        assertThat(subscriptions.getWatchers("tim")).containsExactly("session1");
+        assertThat(subscriptions.getWatchers("nobody")).isEmpty();
+    }
+
+    @Test
+    public void replacesPreviousInterests() {
+        subscriptions.setInterests("session1", Set.of("phil", "tim"));
+        subscriptions.setInterests("session1", Set.of("tim"));
+
+        assertThat(subscriptions.getWatchers("phil")).isEmpty();
+        assertThat(subscriptions.getWatchers("tim")).containsExactly("session1");
+    }
+
+    @Test
+    public void removingASessionDropsItFromEveryWatchList() {
+        subscriptions.setInterests("session1", Set.of("phil", "tim"));
+        subscriptions.removeSession("session1");
+
+        assertThat(subscriptions.hasInterests("session1")).isFalse();
+        assertThat(subscriptions.getWatchers("phil")).isEmpty();
+        assertThat(subscriptions.getWatchers("tim")).isEmpty();
+    }
+}
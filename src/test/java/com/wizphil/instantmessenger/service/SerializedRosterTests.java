@@ -0,0 +1,39 @@
+package com.wizphil.instantmessenger.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SerializedRosterTests {
+    @Test
+    public void gzipIsTheSameJson() throws IOException {
+        byte[] json = "[{\"id\":\"phil\"},{\"id\":\"tim\"}]".getBytes(StandardCharsets.UTF_8);
+
+        SerializedRoster roster = SerializedRoster.of(42, json);
+
+        assertThat(roster.getVersion()).isEqualTo(42);
+        assertThat(roster.getJson()).isEqualTo(json);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(roster.getGzip()))) {
+            assertThat(in.readAllBytes()).isEqualTo(json);
+        }
+    }
+
+    @Test
+    public void honorsAcceptEncodingQualities() {
+        assertThat(SerializedRoster.acceptsGzip("gzip, deflate, br")).isTrue();
+        assertThat(SerializedRoster.acceptsGzip("GZIP;q=0.5")).isTrue();
+        assertThat(SerializedRoster.acceptsGzip("br, *;q=0.1")).isTrue();
+
+        assertThat(SerializedRoster.acceptsGzip(null)).isFalse();
+        assertThat(SerializedRoster.acceptsGzip("identity")).isFalse();
+        assertThat(SerializedRoster.acceptsGzip("gzip;q=0")).isFalse();
+        assertThat(SerializedRoster.acceptsGzip("gzip; q=0.000, *")).isFalse();
+        assertThat(SerializedRoster.acceptsGzip("*;q=0")).isFalse();
+        assertThat(SerializedRoster.acceptsGzip("gzip;q=nope")).isFalse();
+    }
+}
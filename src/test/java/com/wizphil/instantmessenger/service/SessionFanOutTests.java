@@ -0,0 +1,89 @@
+package com.wizphil.instantmessenger.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionFanOutTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SessionFanOut fanOut = new SessionFanOut(4, 2, meterRegistry);
+
+    @AfterEach
+    public void tearDown() {
+        fanOut.shutdown();
+    }
+
+    @Test
+    public void smallDeliveriesRunOnTheCallersThread() {
+        Thread caller = Thread.currentThread();
+        List<Thread> threads = new ArrayList<>();
+
+        fanOut.deliver(List.of("phil", "tim"), userId -> threads.add(Thread.currentThread()));
+
+        assertThat(threads).containsExactly(caller, caller);
+        assertThat(meterRegistry.get("websocket.fanout.latency").tag("mode", "inline").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void largeDeliveriesReachEveryRecipientOffTheCallersThread() throws InterruptedException {
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            userIds.add("user" + i);
+        }
+
+        Thread caller = Thread.currentThread();
+        Map<String, Thread> threads = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(userIds.size());
+        fanOut.deliver(userIds, userId -> {
+            threads.put(userId, Thread.currentThread());
+            latch.countDown();
+        });
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(threads).containsOnlyKeys(userIds);
+        assertThat(threads.values()).doesNotContain(caller);
+    }
+
+    @Test
+    public void keepsPerRecipientOrderingWhenASmallDeliveryFollowsALargeOne() throws InterruptedException {
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            userIds.add("user" + i);
+        }
+
+        CountDownLatch blockLanes = new CountDownLatch(1);
+        List<String> receivedByPhil = Collections.synchronizedList(new ArrayList<>());
+        userIds.add("phil");
+        fanOut.deliver(userIds, userId -> {
+            try {
+                blockLanes.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (userId.equals("phil")) {
+                receivedByPhil.add("group");
+            }
+        });
+
+        CountDownLatch directDelivered = new CountDownLatch(1);
+        fanOut.deliver(List.of("phil"), userId -> {
+            receivedByPhil.add("direct");
+            directDelivered.countDown();
+        });
+
+        blockLanes.countDown();
+        assertThat(directDelivered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(receivedByPhil).containsExactly("group", "direct");
+    }
+}
@@ -0,0 +1,158 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.config.EncodedMessage;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.WireFormat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SessionOutboundQueueTests {
+    private Session session;
+    private final List<String> written = new ArrayList<>();
+    private final List<SendHandler> pendingHandlers = new ArrayList<>();
+    private final AtomicInteger evictions = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() {
+        session = mock(Session.class);
+        RemoteEndpoint.Async async = mock(RemoteEndpoint.Async.class);
+        when(session.getId()).thenReturn("session");
+        when(session.getAsyncRemote()).thenReturn(async);
+        doAnswer(invocation -> {
+            written.add(invocation.getArgument(0));
+            pendingHandlers.add(invocation.getArgument(1));
+            return null;
+        }).when(async).sendText(any(), any(SendHandler.class));
+    }
+
+    private SessionOutboundQueue queue(int maxDepth, int highWatermark, int lowWatermark, long timeoutMs) {
+        return new SessionOutboundQueue(session, WireFormat.JsonV1, maxDepth, highWatermark, lowWatermark, timeoutMs, evicted -> evictions.incrementAndGet());
+    }
+
+    private static EncodedMessage message(Object content) {
+        return EncodedMessage.encode(new MessageWrapperDTO(MessageCategory.DirectMessage, content));
+    }
+
+    private void completeNextWrite() {
+        pendingHandlers.remove(0).onResult(new SendResult());
+    }
+
+    @Test
+    public void writesOneMessageAtATimeInOrder() {
+        SessionOutboundQueue outboundQueue = queue(100, 50, 10, 1000);
+
+        outboundQueue.enqueue(message("one"));
+        outboundQueue.enqueue(message("two"));
+        outboundQueue.enqueue(message("three"));
+
+        assertThat(written).containsExactly(message("one").getText(WireFormat.JsonV1));
+        assertThat(outboundQueue.getDepth()).isEqualTo(3);
+
+        completeNextWrite();
+        completeNextWrite();
+        completeNextWrite();
+
+        assertThat(written).containsExactly(message("one").getText(WireFormat.JsonV1), message("two").getText(WireFormat.JsonV1), message("three").getText(WireFormat.JsonV1));
+        assertThat(outboundQueue.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void drainsWithoutRecursingWhenWritesCompleteInline() {
+        RemoteEndpoint.Async async = mock(RemoteEndpoint.Async.class);
+        when(session.getAsyncRemote()).thenReturn(async);
+        doAnswer(invocation -> {
+            written.add(invocation.getArgument(0));
+            ((SendHandler) invocation.getArgument(1)).onResult(new SendResult());
+            return null;
+        }).when(async).sendText(any(), any(SendHandler.class));
+
+        SessionOutboundQueue outboundQueue = queue(100_000, 100_000, 10, 1000);
+        for (int i = 0; i < 50_000; i++) {
+            outboundQueue.enqueue(message(i));
+        }
+
+        assertThat(written).hasSize(50_000);
+        assertThat(outboundQueue.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void evictsWhenQueueIsFull() {
+        SessionOutboundQueue outboundQueue = queue(2, 100, 1, 1000);
+
+        assertThat(outboundQueue.enqueue(message("one"))).isTrue();
+        assertThat(outboundQueue.enqueue(message("two"))).isTrue();
+        assertThat(outboundQueue.enqueue(message("three"))).isFalse();
+
+        assertThat(outboundQueue.isEvicted()).isTrue();
+        assertThat(evictions.get()).isEqualTo(1);
+        assertThat(outboundQueue.enqueue(message("four"))).isFalse();
+        assertThat(evictions.get()).isEqualTo(1);
+
+        // "one" was still being written when "two" was cleared
+        assertThat(outboundQueue.getDepth()).isEqualTo(1);
+        completeNextWrite();
+        assertThat(outboundQueue.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void evictsWhenAboveHighWatermarkForTooLong() throws InterruptedException {
+        SessionOutboundQueue outboundQueue = queue(100, 2, 1, 10);
+
+        outboundQueue.enqueue(message("one"));
+        outboundQueue.enqueue(message("two"));
+        assertThat(outboundQueue.isEvicted()).isFalse();
+
+        Thread.sleep(20);
+        outboundQueue.enqueue(message("three"));
+
+        assertThat(outboundQueue.isEvicted()).isTrue();
+        assertThat(evictions.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void sweepEvictsAStalledSessionWithoutNewTraffic() throws InterruptedException {
+        SessionOutboundQueue outboundQueue = queue(100, 2, 1, 10);
+
+        outboundQueue.enqueue(message("one"));
+        outboundQueue.enqueue(message("two"));
+        assertThat(outboundQueue.evictIfSlow()).isFalse();
+
+        // nothing else is sent and "one" never completes
+        Thread.sleep(20);
+        assertThat(outboundQueue.evictIfSlow()).isTrue();
+
+        assertThat(outboundQueue.isEvicted()).isTrue();
+        assertThat(evictions.get()).isEqualTo(1);
+        assertThat(outboundQueue.getDepth()).isEqualTo(1);
+        assertThat(outboundQueue.evictIfSlow()).isFalse();
+    }
+
+    @Test
+    public void recoversWhenDrainedBelowLowWatermark() throws InterruptedException {
+        SessionOutboundQueue outboundQueue = queue(100, 2, 1, 10);
+
+        outboundQueue.enqueue(message("one"));
+        outboundQueue.enqueue(message("two"));
+        completeNextWrite();
+
+        Thread.sleep(20);
+        outboundQueue.enqueue(message("three"));
+
+        assertThat(outboundQueue.isEvicted()).isFalse();
+    }
+}
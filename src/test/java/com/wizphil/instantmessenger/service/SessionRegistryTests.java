@@ -0,0 +1,60 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.persistence.user.UserSession;
+import org.junit.jupiter.api.Test;
+
+import javax.websocket.Session;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SessionRegistryTests {
+    private final SessionRegistry sessionRegistry = new SessionRegistry();
+
+    private static UserSession userSession(String userId, String sessionId) {
+        Session session = mock(Session.class);
+        when(session.getId()).thenReturn(sessionId);
+        return UserSession.builder().userId(userId).session(session).build();
+    }
+
+    @Test
+    public void indexesSessionsByUserAndSessionId() {
+        UserSession desktop = userSession("phil", "desktop");
+        UserSession phone = userSession("phil", "phone");
+
+        assertThat(sessionRegistry.add(desktop)).isTrue();
+        assertThat(sessionRegistry.add(phone)).isTrue();
+
+        assertThat(sessionRegistry.getSessions("phil")).containsExactly(desktop, phone);
+        assertThat(sessionRegistry.get("phone")).isSameAs(phone);
+        assertThat(sessionRegistry.getAllSessions()).containsExactlyInAnyOrder(desktop, phone);
+    }
+
+    @Test
+    public void rejectsDuplicateSessionIds() {
+        sessionRegistry.add(userSession("phil", "desktop"));
+
+        assertThat(sessionRegistry.add(userSession("tim", "desktop"))).isFalse();
+        assertThat(sessionRegistry.getSessions("tim")).isEmpty();
+    }
+
+    @Test
+    public void removesSessionsWithoutDisturbingArraysAlreadyHandedOut() {
+        UserSession desktop = userSession("phil", "desktop");
+        UserSession phone = userSession("phil", "phone");
+        sessionRegistry.add(desktop);
+        sessionRegistry.add(phone);
+        UserSession[] before = sessionRegistry.getSessions("phil");
+
+        assertThat(sessionRegistry.remove("desktop")).isSameAs(desktop);
+        assertThat(sessionRegistry.remove("desktop")).isNull();
+
+        assertThat(sessionRegistry.getSessions("phil")).containsExactly(phone);
+        assertThat(before).containsExactly(desktop, phone);
+
+        sessionRegistry.remove("phone");
+        assertThat(sessionRegistry.getSessions("phil")).isEmpty();
+        assertThat(sessionRegistry.get("phone")).isNull();
+    }
+}
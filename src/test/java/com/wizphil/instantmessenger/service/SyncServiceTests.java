@@ -0,0 +1,76 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.cache.SyncEventLog;
+import com.wizphil.instantmessenger.dto.SyncDTO;
+import com.wizphil.instantmessenger.dto.SyncEventDTO;
+import com.wizphil.instantmessenger.dto.UserStatusDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.enums.Status;
+import com.wizphil.instantmessenger.exceptions.InvalidEntityException;
+import com.wizphil.instantmessenger.persistence.user.UserStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SyncServiceTests {
+    private final MessageService messageService = mock(MessageService.class);
+    private final SyncEventLog syncEventLog = new SyncEventLog();
+    private final SyncService syncService = new SyncService();
+
+    @BeforeEach
+    public void setUp() {
+        syncEventLog.setCapacity(100);
+        syncEventLog.init();
+        syncService.setSyncEventLog(syncEventLog);
+        syncService.setMessageService(messageService);
+        syncService.setMaxEvents(100);
+        when(messageService.getUnreadMessageCounts("phil")).thenReturn(Map.of("tim", 2L));
+    }
+
+    private static UserStatusDTO status(String id, Status status) {
+        return new UserStatusDTO(id, UserStatus.builder().status(status).time(1).build());
+    }
+
+    @Test
+    public void firstSyncIsAFullResync() {
+        syncEventLog.append(MessageCategory.NewUser, "brian", null);
+
+        SyncDTO sync = syncService.sync("phil", null);
+
+        assertThat(sync.isFullResync()).isTrue();
+        assertThat(sync.getEvents()).isEmpty();
+        assertThat(sync.getUnreadCounts()).containsOnly(Map.entry("tim", 2L));
+        // the next sync only gets what happened after this one
+        syncEventLog.append(MessageCategory.NewUser, "tim", null);
+        assertThat(syncService.sync("phil", sync.getCursor()).getEvents()).extracting(SyncEventDTO::getPayload).containsExactly("tim");
+    }
+
+    @Test
+    public void collapsesStatusChangesToTheLatest() {
+        String cursor = syncService.sync("phil", null).getCursor();
+        syncEventLog.append(MessageCategory.UpdateUserStatus, status("tim", Status.Available), null);
+        syncEventLog.append(MessageCategory.DirectMessage, "hi", List.of("phil", "tim"));
+        syncEventLog.append(MessageCategory.UpdateUserStatus, status("tim", Status.Away), null);
+
+        SyncDTO sync = syncService.sync("phil", cursor);
+
+        assertThat(sync.isFullResync()).isFalse();
+        assertThat(sync.getEvents()).extracting(SyncEventDTO::getCategory).containsExactly(MessageCategory.DirectMessage, MessageCategory.UpdateUserStatus);
+        assertThat(((UserStatusDTO) sync.getEvents().get(1).getPayload()).getUserStatus().getStatus()).isEqualTo(Status.Away);
+    }
+
+    @Test
+    public void cursorsFromAnotherRunNeedAFullResync() {
+        String stale = SyncService.encodeCursor(syncEventLog.getEpoch() - 1, 0);
+
+        assertThat(syncService.sync("phil", stale).isFullResync()).isTrue();
+        assertThatThrownBy(() -> syncService.sync("phil", "garbage")).isInstanceOf(InvalidEntityException.class);
+    }
+}
@@ -0,0 +1,109 @@
+package com.wizphil.instantmessenger.service;
+
+import com.wizphil.instantmessenger.dto.GroupUsersDTO;
+import com.wizphil.instantmessenger.dto.MessageWrapperDTO;
+import com.wizphil.instantmessenger.enums.MessageCategory;
+import com.wizphil.instantmessenger.persistence.Group;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TypingIndicatorServiceTests {
+    private final SessionService sessionService = mock(SessionService.class);
+    private final GroupService groupService = mock(GroupService.class);
+    private final Group group = new Group("group", new HashSet<>(Set.of("phil", "tim", "ana")), "name", true);
+    private TypingIndicatorService typingIndicatorService;
+
+    private TypingIndicatorService typingIndicatorService(long throttleMs, long groupWindowMs, long expireMs) {
+        typingIndicatorService = new TypingIndicatorService();
+        typingIndicatorService.setSessionService(sessionService);
+        typingIndicatorService.setGroupService(groupService);
+        typingIndicatorService.setThrottleMs(throttleMs);
+        typingIndicatorService.setGroupWindowMs(groupWindowMs);
+        typingIndicatorService.setExpireMs(expireMs);
+        typingIndicatorService.init();
+        when(groupService.getGroup("group")).thenReturn(group);
+        return typingIndicatorService;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        typingIndicatorService.destroy();
+    }
+
+    private GroupUsersDTO lastGroupTyping() {
+        ArgumentCaptor<MessageWrapperDTO> captor = ArgumentCaptor.forClass(MessageWrapperDTO.class);
+        verify(sessionService).sendMessageToUsers(eq(group.getUserIds()), captor.capture());
+        assertThat(captor.getValue().getCategory()).isEqualTo(MessageCategory.GroupTyping);
+        return (GroupUsersDTO) captor.getValue().getPayload();
+    }
+
+    @Test
+    public void throttlesDirectPingsPerPair() {
+        TypingIndicatorService service = typingIndicatorService(10_000, 10_000, 20_000);
+
+        service.userTyping("phil", "tim");
+        service.userTyping("phil", "tim");
+        service.userTyping("phil", "ana");
+
+        verify(sessionService, times(1)).sendMessageToUser(eq("tim"), any());
+        verify(sessionService, times(1)).sendMessageToUser(eq("ana"), any());
+    }
+
+    @Test
+    public void aggregatesGroupTypingIntoOneFrame() {
+        TypingIndicatorService service = typingIndicatorService(10_000, 10_000, 20_000);
+
+        service.groupTyping("phil", group);
+        service.groupTyping("tim", group);
+        service.groupTyping("phil", group);
+        verify(sessionService, never()).sendMessageToUsers(any(), any());
+
+        service.flush();
+        assertThat(lastGroupTyping().getUserIds()).containsExactlyInAnyOrder("phil", "tim");
+        assertThat(group.getUserIds()).containsExactlyInAnyOrder("phil", "tim", "ana");
+
+        // nothing changed, nothing sent
+        clearInvocations(sessionService);
+        service.flush();
+        verify(sessionService, never()).sendMessageToUsers(any(), any());
+    }
+
+    @Test
+    public void sendsAnEmptyFrameWhenTypistsExpire() throws InterruptedException {
+        TypingIndicatorService service = typingIndicatorService(0, 10_000, 10);
+
+        service.groupTyping("phil", group);
+        service.flush();
+        clearInvocations(sessionService);
+
+        Thread.sleep(20);
+        service.flush();
+
+        assertThat(lastGroupTyping().getUserIds()).isEmpty();
+    }
+
+    @Test
+    public void sendsGroupPingsImmediatelyWhenAggregationIsDisabled() {
+        TypingIndicatorService service = typingIndicatorService(0, 0, 20_000);
+
+        service.groupTyping("phil", group);
+
+        ArgumentCaptor<Set<String>> captor = ArgumentCaptor.forClass(Set.class);
+        verify(sessionService).sendMessageToUsers(captor.capture(), any());
+        assertThat(captor.getValue()).containsExactlyInAnyOrder("tim", "ana");
+    }
+}
@@ -0,0 +1,145 @@
+package com.wizphil.instantmessenger.service;
+
+import com.mongodb.client.MongoCollection;
+import com.wizphil.instantmessenger.cache.GroupCache;
+import com.wizphil.instantmessenger.cache.UnreadSnapshotter;
+import com.wizphil.instantmessenger.cache.UserCache;
+import com.wizphil.instantmessenger.persistence.Group;
+import com.wizphil.instantmessenger.persistence.user.User;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WarmUpServiceTests {
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final UserCache userCache = mock(UserCache.class);
+    private final UserService userService = mock(UserService.class);
+    private final GroupCache groupCache = mock(GroupCache.class);
+    private final UnreadSnapshotter unreadSnapshotter = mock(UnreadSnapshotter.class);
+    private final WarmUpService warmUpService = new WarmUpService();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        MongoCollection<Document> users = mock(MongoCollection.class);
+        MongoCollection<Document> groups = mock(MongoCollection.class);
+        when(mongoTemplate.getCollectionName(User.class)).thenReturn("user");
+        when(mongoTemplate.getCollectionName(Group.class)).thenReturn("group");
+        when(mongoTemplate.getCollection("user")).thenReturn(users);
+        when(mongoTemplate.getCollection("group")).thenReturn(groups);
+        when(users.estimatedDocumentCount()).thenReturn(5L);
+        when(groups.estimatedDocumentCount()).thenReturn(3L);
+
+        warmUpService.setMongoTemplate(mongoTemplate);
+        warmUpService.setUserCache(userCache);
+        warmUpService.setUserService(userService);
+        warmUpService.setGroupCache(groupCache);
+        warmUpService.setUnreadSnapshotter(unreadSnapshotter);
+        warmUpService.setBatchSize(2);
+        warmUpService.setThreads(2);
+        warmUpService.setProgressIntervalMs(60_000);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        warmUpService.destroy();
+    }
+
+    private static <T> CloseableIterator<T> cursor(List<T> documents) {
+        Iterator<T> iterator = documents.iterator();
+        return new CloseableIterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static List<User> users(int count) {
+        return IntStream.range(0, count).mapToObj(i -> User.builder().id("user" + i).build()).collect(Collectors.toList());
+    }
+
+    private static List<Group> groups(int count) {
+        return IntStream.range(0, count).mapToObj(i -> Group.builder().id("group" + i).build()).collect(Collectors.toList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void streamsEverythingInBatchesThenBecomesReady() throws InterruptedException {
+        when(mongoTemplate.stream(any(Query.class), eq(User.class))).thenReturn(cursor(users(5)));
+        when(mongoTemplate.stream(any(Query.class), eq(Group.class))).thenReturn(cursor(groups(3)));
+
+        warmUpService.init();
+
+        verify(unreadSnapshotter, timeout(5000)).start();
+        verify(userCache).startWarmUp(5);
+        verify(userCache).finishWarmUp();
+        ArgumentCaptor<List<User>> userBatches = ArgumentCaptor.forClass(List.class);
+        verify(userCache, atLeastOnce()).warm(userBatches.capture());
+        assertThat(userBatches.getAllValues()).extracting(List::size).containsExactlyInAnyOrder(2, 2, 1);
+        ArgumentCaptor<List<Group>> groupBatches = ArgumentCaptor.forClass(List.class);
+        verify(groupCache, atLeastOnce()).warm(groupBatches.capture());
+        assertThat(groupBatches.getAllValues()).extracting(List::size).containsExactlyInAnyOrder(2, 1);
+        verify(userService, times(3)).warmUserInfo(any());
+        // ready is set right after the snapshot restore starts
+        waitUntil(() -> warmUpService.isReady());
+        assertThat(warmUpService.getUsersLoaded()).isEqualTo(5);
+        assertThat(warmUpService.getGroupsLoaded()).isEqualTo(3);
+        assertThat(warmUpService.getFailure()).isNull();
+    }
+
+    @Test
+    public void staysOutOfServiceWhenABatchFails() throws InterruptedException {
+        when(mongoTemplate.stream(any(Query.class), eq(User.class))).thenReturn(cursor(users(5)));
+        when(mongoTemplate.stream(any(Query.class), eq(Group.class))).thenReturn(cursor(new ArrayList<>()));
+        doThrow(new IllegalStateException("boom")).when(userCache).warm(any());
+
+        warmUpService.init();
+
+        waitUntil(() -> warmUpService.getFailure() != null);
+        assertThat(warmUpService.isReady()).isFalse();
+        verify(userCache, never()).finishWarmUp();
+        verify(unreadSnapshotter, never()).start();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+}